@@ -0,0 +1,15 @@
+package simpledb.common;
+
+/**
+ * Priority class of a table in the BufferPool, kept in its Catalog entry.
+ * When the pool needs a frame it evicts pages of LOW tables before NORMAL
+ * ones, and NORMAL before HIGH, so that small, hot tables stay resident
+ * while large tables are scanned.
+ *
+ * @see Catalog#setCachePolicy
+ */
+public enum CachePriority {
+    LOW,
+    NORMAL,
+    HIGH
+}
@@ -29,6 +29,7 @@ public class Catalog {
      */
     HashMap<String, Integer> NameToIdMap;
     HashMap<Integer, Table> IdToTableMap;
+    private volatile boolean cachePolicies; // whether any table has a non-default cache policy
 
     public Catalog() {
         // some code goes here
@@ -122,6 +123,62 @@ public class Catalog {
         return IdToTableMap.get(tableid).getPkeyField();
     }
 
+    /**
+     * Set how the BufferPool treats the pages of the specified table. Pages
+     * of lower priority tables are evicted first; a table that holds more
+     * than its quota of the pool gives up its own pages before it may take
+     * frames from other tables. Once any table has a cache policy, the
+     * internal pages of B+ trees are kept like those of HIGH priority tables.
+     * A priority applies to pages as they are read into the pool.
+     *
+     * @param tableid    The id of the table, as specified by the DbFile.getId()
+     *                   function passed to addTable
+     * @param priority   the priority class of the table
+     * @param quotaBytes the most bytes of pages the table should hold in the
+     *                   BufferPool, or 0 for no quota
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public void setCachePolicy(int tableid, CachePriority priority, long quotaBytes) {
+        if (!IdToTableMap.containsKey(tableid))
+            throw new NoSuchElementException("The table doesn't exist!");
+        if (quotaBytes < 0)
+            throw new IllegalArgumentException("negative quota " + quotaBytes);
+        Table table = IdToTableMap.get(tableid);
+        table.setCachePriority(priority);
+        table.setQuotaBytes(quotaBytes);
+        if (priority != CachePriority.NORMAL || quotaBytes > 0)
+            cachePolicies = true;
+    }
+
+    /**
+     * @return the BufferPool priority class of the specified table
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public CachePriority getCachePriority(int tableid) {
+        if (!IdToTableMap.containsKey(tableid))
+            throw new NoSuchElementException("The table doesn't exist!");
+        return IdToTableMap.get(tableid).getCachePriority();
+    }
+
+    /**
+     * @return the BufferPool quota of the specified table in bytes, or 0 if
+     * it has none
+     * @throws NoSuchElementException if the table doesn't exist
+     */
+    public long getQuotaBytes(int tableid) {
+        if (!IdToTableMap.containsKey(tableid))
+            throw new NoSuchElementException("The table doesn't exist!");
+        return IdToTableMap.get(tableid).getQuotaBytes();
+    }
+
+    /**
+     * @return false if every table has the default cache policy, so that the
+     * BufferPool can skip looking them up
+     */
+    public boolean hasCachePolicies() {
+        return cachePolicies;
+    }
+
     public Iterator<Integer> tableIdIterator() {
         // some code goes here
         return IdToTableMap.keySet().iterator();
@@ -139,10 +196,18 @@ public class Catalog {
         // some code goes here
         NameToIdMap.clear();
         IdToTableMap.clear();
+        cachePolicies = false;
     }
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * A table may be followed by its BufferPool cache policy, e.g.
+     * <pre>
+     * nation (id int pk, name string) priority=high
+     * lineitem (id int, price int) priority=low quota=1048576
+     * </pre>
+     * Field types are int, string (stored padded to its maximum length) and
+     * varstring (stored in as many bytes as each value needs).
      *
      * @param catalogFile
      */
@@ -168,6 +233,8 @@ public class Catalog {
                         types.add(Type.INT_TYPE);
                     else if (els2[1].trim().equalsIgnoreCase("string"))
                         types.add(Type.STRING_TYPE);
+                    else if (els2[1].trim().equalsIgnoreCase("varstring"))
+                        types.add(Type.VARSTRING_TYPE);
                     else {
                         System.out.println("Unknown type " + els2[1]);
                         System.exit(0);
@@ -186,12 +253,29 @@ public class Catalog {
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
                 addTable(tabHf, name, primaryKey);
+                CachePriority priority = CachePriority.NORMAL;
+                long quota = 0;
+                for (String option : line.substring(line.indexOf(")") + 1).trim().split("\\s+")) {
+                    if (option.isEmpty())
+                        continue;
+                    String[] kv = option.split("=");
+                    if (kv.length == 2 && kv[0].equalsIgnoreCase("priority"))
+                        priority = CachePriority.valueOf(kv[1].toUpperCase());
+                    else if (kv.length == 2 && kv[0].equalsIgnoreCase("quota"))
+                        quota = Long.parseLong(kv[1]);
+                    else {
+                        System.out.println("Unknown option " + option);
+                        System.exit(0);
+                    }
+                }
+                if (priority != CachePriority.NORMAL || quota > 0)
+                    setCachePolicy(tabHf.getId(), priority, quota);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
             System.out.println("Invalid catalog entry : " + line);
             System.exit(0);
         }
@@ -3,7 +3,11 @@ package simpledb.common;
 import simpledb.storage.BufferPool;
 import simpledb.storage.LogFile;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -22,6 +26,17 @@ public class Database {
     private final BufferPool _bufferpool;
 
     private final static String LOGFILENAME = "log";
+    private final static String BUFFER_POOL_MBEAN = "simpledb:type=BufferPool";
+    private final static String TRANSACTIONS_MBEAN = "simpledb:type=Transactions";
+
+    /**
+     * System properties enabling a warm restart of the buffer pool: the file
+     * to keep the resident page ids in, and how often to save them, in
+     * seconds (0, the default, saves them on shutdown only). For example,
+     * -Dsimpledb.pageList=pages.lst -Dsimpledb.pageList.interval=60
+     */
+    private final static String PAGE_LIST_PROPERTY = "simpledb.pageList";
+    private final static String PAGE_LIST_INTERVAL_PROPERTY = "simpledb.pageList.interval";
     private final LogFile _logfile;
 
     private Database() {
@@ -35,9 +50,45 @@ public class Database {
             System.exit(1);
         }
         _logfile = tmp;
+        configure(_bufferpool);
         // startControllerThread();
     }
 
+    /**
+     * Apply the system properties to the given buffer pool, and publish its
+     * metrics.
+     */
+    private static void configure(BufferPool bufferPool) {
+        String pageList = System.getProperty(PAGE_LIST_PROPERTY);
+        if (pageList != null)
+            bufferPool.enablePageList(new File(pageList),
+                    1000L * Long.getLong(PAGE_LIST_INTERVAL_PROPERTY, 0));
+        registerMBeans(bufferPool);
+    }
+
+    /**
+     * Publish the metrics of the given buffer pool and its lock manager on
+     * the platform MBean server, replacing those of an earlier pool.
+     */
+    private static void registerMBeans(BufferPool bufferPool) {
+        registerMBean(BUFFER_POOL_MBEAN, bufferPool.getMetrics());
+        registerMBean(TRANSACTIONS_MBEAN, bufferPool.getTransactionMetrics());
+    }
+
+    private static void registerMBean(String name, Object mbean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = new ObjectName(name);
+            synchronized (Database.class) {
+                if (server.isRegistered(objectName))
+                    server.unregisterMBean(objectName);
+                server.registerMBean(mbean, objectName);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+    }
+
     /** Return the log file of the static Database instance */
     public static LogFile getLogFile() {
         return _instance.get()._logfile;
@@ -58,20 +109,33 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Method used for testing -- install the given buffer pool and return it.
+     * The background threads of the pool it replaces are stopped first.
+     */
+    public static BufferPool resetBufferPool(BufferPool bufferPool) {
+        BufferPool old = getBufferPool();
+        if (old != bufferPool)
+            old.shutdown();
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), bufferPool);
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
         }
 //        _instance._bufferpool = new BufferPool(pages);
+        configure(bufferPool);
         return _instance.get()._bufferpool;
     }
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        getBufferPool().shutdown();
         _instance.set(new Database());
     }
 
@@ -0,0 +1,91 @@
+package simpledb.common;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram counts durations in power-of-two buckets of nanoseconds.
+ * Every bucket is a striped LongAdder, so recording from many threads costs
+ * one uncontended add and never takes a lock. Percentiles are reported as
+ * the upper bound of the bucket they fall in, i.e. to within a factor of two.
+ *
+ * @Threadsafe
+ */
+public class LatencyHistogram {
+
+    private static final int NUM_BUCKETS = Long.SIZE;
+
+    private final LongAdder[] buckets;
+    private final LongAdder count;
+    private final LongAdder totalNanos;
+    private final LongAccumulator maxNanos;
+
+    public LatencyHistogram() {
+        this.buckets = new LongAdder[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++)
+            buckets[i] = new LongAdder();
+        this.count = new LongAdder();
+        this.totalNanos = new LongAdder();
+        this.maxNanos = new LongAccumulator(Math::max, 0);
+    }
+
+    /**
+     * Record one duration.
+     *
+     * @param nanos the duration in nanoseconds; negative values count as 0
+     */
+    public void record(long nanos) {
+        nanos = Math.max(0, nanos);
+        // bucket i holds the durations of i significant bits, i.e. below 2^i ns
+        buckets[Long.SIZE - Long.numberOfLeadingZeros(nanos)].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * @return the number of durations recorded
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the mean duration in microseconds, or 0 if nothing was recorded
+     */
+    public double getMeanMicros() {
+        long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+    }
+
+    /**
+     * @return the longest duration recorded, in microseconds
+     */
+    public double getMaxMicros() {
+        return maxNanos.get() / 1000.0;
+    }
+
+    /**
+     * @param fraction the percentile wanted, between 0 and 1 (0.99 for p99)
+     * @return an upper bound on the given percentile in microseconds, or 0 if
+     * nothing was recorded
+     */
+    public double getPercentileMicros(double fraction) {
+        long[] counts = new long[NUM_BUCKETS];
+        long n = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            n += counts[i];
+        }
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(Math.min(1, Math.max(0, fraction)) * n);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0)
+                return Math.min((1L << i) - 1, maxNanos.get()) / 1000.0;
+        }
+        return getMaxMicros();
+    }
+}
@@ -10,6 +10,11 @@ public class Table {
     private DbFile dbFile;
     private String tableName;
     private String pkeyField;
+    /*
+     * How the BufferPool treats the pages of this table, see Catalog.setCachePolicy().
+     */
+    private volatile CachePriority cachePriority = CachePriority.NORMAL;
+    private volatile long quotaBytes; // 0: no quota
 
     public Table(DbFile dbFile, String tableName, String pkeyField) {
         this.dbFile = dbFile;
@@ -40,4 +45,20 @@ public class Table {
     public void setPkeyField(String pkeyField) {
         this.pkeyField = pkeyField;
     }
+
+    public CachePriority getCachePriority() {
+        return cachePriority;
+    }
+
+    public void setCachePriority(CachePriority cachePriority) {
+        this.cachePriority = cachePriority;
+    }
+
+    public long getQuotaBytes() {
+        return quotaBytes;
+    }
+
+    public void setQuotaBytes(long quotaBytes) {
+        this.quotaBytes = quotaBytes;
+    }
 }
@@ -1,11 +1,15 @@
 package simpledb.common;
 
+import simpledb.execution.Predicate;
 import simpledb.storage.StringField;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.io.*;
+import java.util.Arrays;
 
 /**
  * Class representing a type in SimpleDB.
@@ -28,6 +32,18 @@ public enum Type implements Serializable {
             }
         }
 
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            return new IntField(buf.getInt(offset));
+        }
+
+        @Override
+        public boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field operand) {
+            // LIKE means equality for integers, see IntField.compare
+            int cmp = Integer.compare(buf.getInt(offset), ((IntField) operand).getValue());
+            return holds(cmp, op == Predicate.Op.LIKE ? Predicate.Op.EQUALS : op);
+        }
+
     }, STRING_TYPE() {
         @Override
         public int getLen() {
@@ -46,15 +62,197 @@ public enum Type implements Serializable {
                 throw new ParseException("couldn't parse", 0);
             }
         }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = buf.getInt(offset);
+            byte[] bs = new byte[strLen];
+            for (int i = 0; i < strLen; i++)
+                bs[i] = buf.get(offset + 4 + i);
+            return new StringField(new String(bs), STRING_LEN);
+        }
+
+        @Override
+        public boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field operand) {
+            int cmp = op == Predicate.Op.LIKE ? NOT_ASCII
+                    : compareAscii(buf, offset + 4, buf.getInt(offset), ((StringField) operand).getValue());
+            return cmp == NOT_ASCII ? super.compare(buf, offset, op, operand) : holds(cmp, op);
+        }
+    }, VARSTRING_TYPE() {
+        @Override
+        public int getLen() {
+            return STRING_LEN+4;
+        }
+
+        @Override
+        public Field parse(DataInputStream dis) throws ParseException {
+            try {
+                int strLen = dis.readInt();
+                byte[] bs = new byte[strLen];
+                dis.read(bs);
+                dis.skipBytes(STRING_LEN-strLen);
+                return new StringField(new String(bs, StandardCharsets.UTF_8), STRING_LEN, this);
+            } catch (IOException e) {
+                throw new ParseException("couldn't parse", 0);
+            }
+        }
+
+        @Override
+        public Field parse(ByteBuffer buf, int offset) {
+            int strLen = buf.getInt(offset);
+            byte[] bs = new byte[strLen];
+            for (int i = 0; i < strLen; i++)
+                bs[i] = buf.get(offset + 4 + i);
+            return new StringField(new String(bs, StandardCharsets.UTF_8), STRING_LEN, this);
+        }
+
+        @Override
+        public boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field operand) {
+            int cmp = op == Predicate.Op.LIKE ? NOT_ASCII
+                    : compareAscii(buf, offset + 4, buf.getInt(offset), ((StringField) operand).getValue());
+            return cmp == NOT_ASCII ? super.compare(buf, offset, op, operand) : holds(cmp, op);
+        }
+
+        @Override
+        public boolean isVariableLength() {
+            return true;
+        }
+
+        @Override
+        public int getStoredLen(Field f) {
+            return 4 + encode(f).length;
+        }
+
+        @Override
+        public int getStoredLen(ByteBuffer buf, int offset) {
+            return 4 + buf.getInt(offset);
+        }
+
+        @Override
+        public int getMinStoredLen() {
+            return 4;
+        }
+
+        @Override
+        public void serializeStored(Field f, DataOutputStream dos) throws IOException {
+            byte[] bytes = encode(f);
+            dos.writeInt(bytes.length);
+            dos.write(bytes);
+        }
+
+        /**
+         * @return the UTF-8 bytes of a string field, cut back to the last
+         * whole character within STRING_LEN bytes
+         */
+        private byte[] encode(Field f) {
+            byte[] bytes = ((StringField) f).getValue().getBytes(StandardCharsets.UTF_8);
+            if (bytes.length <= STRING_LEN)
+                return bytes;
+            int len = STRING_LEN;
+            while ((bytes[len] & 0xC0) == 0x80) // a continuation byte
+                len--;
+            return Arrays.copyOf(bytes, len);
+        }
     };
     
     public static final int STRING_LEN = 128;
 
+    /**
+     * Returned by compareAscii() when the bytes or the string are not ASCII.
+     */
+    private static final int NOT_ASCII = Integer.MIN_VALUE;
+
+    /**
+     * Compare a string stored as len bytes at an absolute offset of the buffer
+     * to the given string, like String.compareTo() would compare the decoded
+     * string. Only ASCII characters are compared; any other one gives up.
+     *
+     * @return the sign of the comparison, or NOT_ASCII
+     */
+    private static int compareAscii(ByteBuffer buf, int offset, int len, String s) {
+        int n = Math.min(len, s.length());
+        for (int i = 0; i < n; i++) {
+            int b = buf.get(offset + i) & 0xFF;
+            char c = s.charAt(i);
+            if (b >= 0x80 || c >= 0x80)
+                return NOT_ASCII;
+            if (b != c)
+                return b < c ? -1 : 1;
+        }
+        // the longer one is greater, whatever its remaining characters
+        return Integer.compare(len, s.length());
+    }
+
+    /**
+     * @return whether a comparison with the given sign satisfies the op,
+     * which must not be LIKE
+     */
+    private static boolean holds(int cmp, Predicate.Op op) {
+        switch (op) {
+            case EQUALS:
+                return cmp == 0;
+            case NOT_EQUALS:
+                return cmp != 0;
+            case GREATER_THAN:
+                return cmp > 0;
+            case GREATER_THAN_OR_EQ:
+                return cmp >= 0;
+            case LESS_THAN:
+                return cmp < 0;
+            case LESS_THAN_OR_EQ:
+                return cmp <= 0;
+            default:
+                throw new IllegalArgumentException("no comparison for " + op);
+        }
+    }
+
   /**
    * @return the number of bytes required to store a field of this type.
+   *   For a variable-length type, the most a field may take.
    */
     public abstract int getLen();
 
+  /**
+   * @return true if fields of this type take only as many bytes as their
+   *   value needs on the pages of a HeapFile, rather than getLen() bytes.
+   *   Tuples with such fields are stored on slotted pages.
+   * @see simpledb.storage.HeapPage
+   */
+    public boolean isVariableLength() {
+        return false;
+    }
+
+  /**
+   * @return the number of bytes the given field of this type takes on a
+   *   slotted page
+   */
+    public int getStoredLen(Field f) {
+        return getLen();
+    }
+
+  /**
+   * @return the number of bytes taken by the field of this type that is
+   *   stored on a slotted page at an absolute offset of the buffer
+   */
+    public int getStoredLen(ByteBuffer buf, int offset) {
+        return getLen();
+    }
+
+  /**
+   * @return the fewest bytes a field of this type takes on a slotted page
+   */
+    public int getMinStoredLen() {
+        return getLen();
+    }
+
+  /**
+   * Write a field of this type the way it is stored on a slotted page,
+   * which {@link #parse(ByteBuffer, int)} reads back.
+   */
+    public void serializeStored(Field f, DataOutputStream dos) throws IOException {
+        f.serialize(dos);
+    }
+
   /**
    * @return a Field object of the same type as this object that has contents
    *   read from the specified DataInputStream.
@@ -64,4 +262,23 @@ public enum Type implements Serializable {
    */
     public abstract Field parse(DataInputStream dis) throws ParseException;
 
+  /**
+   * @return whether the field of this type stored at an absolute offset of
+   *   the buffer compares to the operand as the op asks, see Field#compare.
+   *   Types override this to compare the stored bytes without decoding a
+   *   Field. The position of the buffer is not changed.
+   */
+    public boolean compare(ByteBuffer buf, int offset, Predicate.Op op, Field operand) {
+        return parse(buf, offset).compare(op, operand);
+    }
+
+  /**
+   * @return a Field object of the same type as this object that has contents
+   *   read from the specified buffer, starting at an absolute offset. The
+   *   position of the buffer is not changed.
+   * @param buf The buffer to read from
+   * @param offset The offset of the first byte of the field in buf
+   */
+    public abstract Field parse(ByteBuffer buf, int offset);
+
 }
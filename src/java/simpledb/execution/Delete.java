@@ -7,6 +7,7 @@ import simpledb.storage.BufferPool;
 import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
+import simpledb.transaction.LockMode;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
@@ -47,6 +48,10 @@ public class Delete extends Operator {
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         super.open();
+        if (child instanceof SeqScan) {
+            // every tuple of the table goes: one X lock on the table instead of one per page
+            Database.getBufferPool().lockTable(tid, ((SeqScan) child).getTableId(), LockMode.X);
+        }
         child.open();
         isFetched = false;
     }
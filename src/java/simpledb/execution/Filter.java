@@ -43,6 +43,10 @@ public class Filter extends Operator {
     public void open() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
+        // A scan of a heap file tests the predicate before decoding tuples;
+        // fetchNext() still checks every tuple it gets.
+        if (child instanceof SeqScan)
+            ((SeqScan) child).pushDown(p);
         child.open();
         super.open();
     }
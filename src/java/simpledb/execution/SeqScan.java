@@ -1,11 +1,14 @@
 package simpledb.execution;
 
 import simpledb.common.Database;
+import simpledb.transaction.LockMode;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.common.Type;
 import simpledb.common.DbException;
+import simpledb.storage.DbFile;
 import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
 import simpledb.storage.Tuple;
 import simpledb.storage.TupleDesc;
 
@@ -24,6 +27,7 @@ public class SeqScan implements OpIterator {
     private int tableid;
     private String tableAlias;
     private DbFileIterator dbFileIterator;
+    private Predicate predicate; // pushed down by a Filter, or null
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -53,6 +57,13 @@ public class SeqScan implements OpIterator {
         return Database.getCatalog().getTableName(tableid);
     }
 
+    /**
+     * @return the id of the table this operator scans
+     */
+    public int getTableId() {
+        return tableid;
+    }
+
     /**
      * @return Return the alias of the table this operator scans.
      */
@@ -77,6 +88,22 @@ public class SeqScan implements OpIterator {
         this.tableid = tableid;
         this.tableAlias = tableAlias;
         this.dbFileIterator = null;
+        this.predicate = null;
+    }
+
+    /**
+     * Have the scan skip the tuples that fail the given predicate, testing
+     * the stored bytes of the field before a tuple is decoded. Must be
+     * called before open(). Only scans of heap files do this, and only for
+     * one predicate.
+     *
+     * @return true if the scan will skip the tuples that fail the predicate
+     */
+    public boolean pushDown(Predicate p) {
+        if (predicate != null || !(Database.getCatalog().getDatabaseFile(tableid) instanceof HeapFile))
+            return predicate == p;
+        predicate = p;
+        return true;
     }
 
     public SeqScan(TransactionId tid, int tableId) {
@@ -86,7 +113,15 @@ public class SeqScan implements OpIterator {
     public void open() throws DbException, TransactionAbortedException {
         // some code goes here
         // Use dbFileIterator = DbFile.iterator() to access tuples
-        dbFileIterator = Database.getCatalog().getDatabaseFile(tableid).iterator(tid);
+        DbFile file = Database.getCatalog().getDatabaseFile(tableid);
+        // One S lock on a large table instead of one per page
+        if (file instanceof HeapFile && Database.getBufferPool().scanLocksTable(
+                ((HeapFile) file).numPages(), file.getPageSize()))
+            Database.getBufferPool().lockTable(tid, tableid, LockMode.S);
+        if (predicate != null && file instanceof HeapFile)
+            dbFileIterator = ((HeapFile) file).iterator(tid, predicate);
+        else
+            dbFileIterator = file.iterator(tid);
         dbFileIterator.open();
     }
 
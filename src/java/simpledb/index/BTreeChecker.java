@@ -1,5 +1,6 @@
 package simpledb.index;
 
+import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.storage.Field;
@@ -83,12 +84,17 @@ public class BTreeChecker {
                                        BTreePageId pageId, Field lowerBound, Field upperBound,
                                        BTreePageId parentId, boolean checkOccupancy, int depth) throws
             TransactionAbortedException, DbException {
+        // pages read from the BufferPool are unpinned once checked, so that
+        // checking a tree larger than the pool does not pin all of it
+        boolean pinned = !dirtypages.containsKey(pageId);
         BTreePage page = (BTreePage )bt.getPage(tid, dirtypages, pageId, Permissions.READ_ONLY);
         assert(page.getParentId().equals(parentId));
 
         if (page.getId().pgcateg() == BTreePageId.LEAF) {
             BTreeLeafPage bpage = (BTreeLeafPage) page;
             bpage.checkRep(bt.keyField(), lowerBound, upperBound, checkOccupancy, depth);
+            if (pinned)
+                Database.getBufferPool().unpinPage(tid, pageId);
             return new SubtreeSummary(bpage, depth);
         } else if (page.getId().pgcateg() == BTreePageId.INTERNAL) {
 
@@ -123,6 +129,8 @@ public class BTreeChecker {
                     ipage.getId(), checkOccupancy, depth + 1);
             acc = SubtreeSummary.checkAndMerge(acc, lastRight);
 
+            if (pinned)
+                Database.getBufferPool().unpinPage(tid, pageId);
             return acc;
         } else {
             assert(false); // no other page types allowed inside the tree.
@@ -32,6 +32,8 @@ public class BTreeFile implements DbFile {
     private final TupleDesc td;
     private final int tableid;
     private final int keyField; // B+树以keyField对应关键字构建索引
+    private final int pageSize; // 0: follow BufferPool.getPageSize()
+    private volatile PageChannel channel; // opened on first use
 
     /**
      * Constructs a B+ tree file backed by the specified file.
@@ -42,10 +44,53 @@ public class BTreeFile implements DbFile {
      * @param td  - the tuple descriptor of tuples in the file
      */
     public BTreeFile(File f, int key, TupleDesc td) {
+        this(f, key, td, 0);
+    }
+
+    /**
+     * Constructs a B+ tree file backed by the specified file, whose internal,
+     * leaf and header pages are pageSize bytes long.
+     *
+     * @param f        - the file that stores the on-disk backing store for this B+ tree
+     *                 file.
+     * @param key      - the field which index is keyed on
+     * @param td       - the tuple descriptor of tuples in the file
+     * @param pageSize - the page size of this file in bytes, or 0 to use
+     *                 {@link BufferPool#getPageSize()}
+     */
+    public BTreeFile(File f, int key, TupleDesc td, int pageSize) {
+        if (pageSize < 0)
+            throw new IllegalArgumentException("negative page size " + pageSize);
         this.f = f;
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Returns the size of the internal, leaf and header pages of this file.
+     * The root pointer page is always {@link BTreeRootPtrPage#PAGE_SIZE} bytes.
+     */
+    @Override
+    public int getPageSize() {
+        return pageSize == 0 ? BufferPool.getPageSize() : pageSize;
+    }
+
+    /**
+     * @return the channel all page I/O of this file goes through, opening it
+     * if this is the first use
+     */
+    private PageChannel channel() throws IOException {
+        PageChannel c = channel;
+        if (c == null) {
+            synchronized (this) {
+                c = channel;
+                if (c == null)
+                    channel = c = new PageChannel(f, getPageSize());
+            }
+        }
+        return c;
     }
 
     /**
@@ -87,33 +132,29 @@ public class BTreeFile implements DbFile {
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+        try {
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-                byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
+                byte[] pageBuf = new byte[BTreeRootPtrPage.PAGE_SIZE];
+                int retval = channel().read(0, pageBuf);
+                if (retval == 0) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
+                if (retval < BTreeRootPtrPage.PAGE_SIZE) {
                     throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
+                            + BTreeRootPtrPage.PAGE_SIZE + " bytes from BTreeFile");
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 return new BTreeRootPtrPage(id, pageBuf);
             } else {
-                byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
+                int pageSize = getPageSize();
+                byte[] pageBuf = new byte[pageSize];
+                int retval = channel().read(pageOffset(id.getPageNumber()), pageBuf);
+                if (retval == 0) {
                     throw new IllegalArgumentException("Read past end of table");
                 }
-                if (retval < BufferPool.getPageSize()) {
+                if (retval < pageSize) {
                     throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
+                            + pageSize + " bytes from BTreeFile");
                 }
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
@@ -127,8 +168,14 @@ public class BTreeFile implements DbFile {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
+    }
+
+    /**
+     * @return the offset in the file of the internal, leaf or header page
+     * with the given number; page 0 is the root pointer page
+     */
+    private long pageOffset(int pgNo) {
+        return BTreeRootPtrPage.PAGE_SIZE + (long) (pgNo - 1) * getPageSize();
     }
 
     /**
@@ -141,14 +188,10 @@ public class BTreeFile implements DbFile {
         BTreePageId id = (BTreePageId) page.getId();
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
+            channel().write(0, data);
         } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+            channel().write(pageOffset(page.getId().getPageNumber()), data);
         }
     }
 
@@ -157,7 +200,7 @@ public class BTreeFile implements DbFile {
      */
     public int numPages() {
         // we only ever write full pages
-        return (int) ((f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        return (int) ((f.length() - BTreeRootPtrPage.PAGE_SIZE) / getPageSize());
     }
 
     /**
@@ -190,18 +233,26 @@ public class BTreeFile implements DbFile {
             // get the leaf page directly
             return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
         } else if (pid.pgcateg() == BTreePageId.INTERNAL) {
+            boolean pinned = !dirtypages.containsKey(pid);
             BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid,
                     Permissions.READ_ONLY);
             Iterator<BTreeEntry> iterator = page.iterator();
             BTreeEntry entry = null;
+            BTreePageId child = null;
             while (iterator.hasNext()) {
                 entry = iterator.next();
                 if (f == null || f.compare(Op.LESS_THAN_OR_EQ, entry.getKey())) {
-                    return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
+                    child = entry.getLeftChild();
+                    break;
                 }
             }
             assert entry != null;
-            return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
+            if (child == null)
+                child = entry.getRightChild();
+            // the internal page is not needed once the child is known
+            if (pinned)
+                Database.getBufferPool().unpinPage(tid, pid);
+            return findLeafPage(tid, dirtypages, child, perm, f);
         }
         return null;
     }
@@ -447,13 +498,15 @@ public class BTreeFile implements DbFile {
     private void updateParentPointer(TransactionId tid, Map<PageId, Page> dirtypages, BTreePageId pid, BTreePageId child)
             throws DbException, TransactionAbortedException {
 
+        boolean pinned = !dirtypages.containsKey(child);
         BTreePage p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_ONLY);
 
         if (!p.getParentId().equals(pid)) {
             p = (BTreePage) getPage(tid, dirtypages, child, Permissions.READ_WRITE);
             p.setParentId(pid);
         }
-
+        if (pinned)
+            Database.getBufferPool().unpinPage(tid, child);
     }
 
     /**
@@ -485,7 +538,9 @@ public class BTreeFile implements DbFile {
      * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
      * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
      * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since
-     * presumably they will soon be dirtied by this transaction.
+     * presumably they will soon be dirtied by this transaction. Such pages are unpinned right away:
+     * dirtypages holds on to them, and the BufferPool caches them again once they are marked dirty,
+     * so a split touching more pages than the BufferPool holds still fits.
      * <p>
      * This method is needed to ensure that page updates are not lost if the same pages are
      * accessed multiple times.
@@ -507,6 +562,7 @@ public class BTreeFile implements DbFile {
             Page p = Database.getBufferPool().getPage(tid, pid, perm);
             if (perm == Permissions.READ_WRITE) {
                 dirtypages.put(pid, p);
+                Database.getBufferPool().unpinPage(tid, pid);
             }
             return p;
         }
@@ -1045,13 +1101,10 @@ public class BTreeFile implements DbFile {
         synchronized (this) {
             if (f.length() == 0) {
                 // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
-                byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData(getPageSize());
+                channel().write(0, emptyRootPtrData);
+                channel().write(pageOffset(1), emptyLeafData);
             }
         }
 
@@ -1096,7 +1149,7 @@ public class BTreeFile implements DbFile {
                 headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
                 int emptySlot = headerPage.getEmptySlot();
                 headerPage.markSlotUsed(emptySlot, true);
-                emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+                emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots(getPageSize()) + emptySlot;
             }
         }
 
@@ -1105,12 +1158,9 @@ public class BTreeFile implements DbFile {
         if (headerId == null) {
             synchronized (this) {
                 // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
-                byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
-                emptyPageNo = numPages();
+                emptyPageNo = numPages() + 1;
+                byte[] emptyData = BTreeInternalPage.createEmptyPageData(getPageSize());
+                channel().write(pageOffset(emptyPageNo), emptyData);
             }
         }
 
@@ -1139,10 +1189,7 @@ public class BTreeFile implements DbFile {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        channel().write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData(getPageSize()));
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().discardPage(newPageId);
@@ -1206,7 +1253,7 @@ public class BTreeFile implements DbFile {
 
         // iterate through all the existing header pages to find the one containing the slot
         // corresponding to emptyPageNo
-        while (headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+        while (headerId != null && (headerPageCount + 1) * BTreeHeaderPage.getNumSlots(getPageSize()) < emptyPageNo) {
             BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_ONLY);
             prevId = headerId;
             headerId = headerPage.getNextPageId();
@@ -1216,7 +1263,7 @@ public class BTreeFile implements DbFile {
         // at this point headerId should either be null or set with
         // the headerPage containing the slot corresponding to emptyPageNo.
         // Add header pages until we have one with a slot corresponding to emptyPageNo
-        while ((headerPageCount + 1) * BTreeHeaderPage.getNumSlots() < emptyPageNo) {
+        while ((headerPageCount + 1) * BTreeHeaderPage.getNumSlots(getPageSize()) < emptyPageNo) {
             BTreeHeaderPage prevPage = (BTreeHeaderPage) getPage(tid, dirtypages, prevId, Permissions.READ_WRITE);
 
             BTreeHeaderPage headerPage = (BTreeHeaderPage) getEmptyPage(tid, dirtypages, BTreePageId.HEADER);
@@ -1232,7 +1279,7 @@ public class BTreeFile implements DbFile {
         // now headerId should be set with the headerPage containing the slot corresponding to
         // emptyPageNo
         BTreeHeaderPage headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-        int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots();
+        int emptySlot = emptyPageNo - headerPageCount * BTreeHeaderPage.getNumSlots(getPageSize());
         headerPage.markSlotUsed(emptySlot, false);
     }
 
@@ -1293,6 +1340,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
         BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
                 tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
         BTreePageId root = rootPtr.getRootId();
+        Database.getBufferPool().unpinPage(tid, rootPtr.getId());
         curp = f.findLeafPage(tid, root, null);
         it = curp.iterator();
     }
@@ -1310,6 +1358,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
         while (it == null && curp != null) {
             BTreePageId nextp = curp.getRightSiblingId();
+            Database.getBufferPool().unpinPage(tid, curp.getId());
             if (nextp == null) {
                 curp = null;
             } else {
@@ -1339,6 +1388,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      */
     public void close() {
         super.close();
+        if (curp != null)
+            Database.getBufferPool().unpinPage(tid, curp.getId());
         it = null;
         curp = null;
     }
@@ -1378,6 +1429,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
         BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
                 tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
         BTreePageId root = rootPtr.getRootId();
+        Database.getBufferPool().unpinPage(tid, rootPtr.getId());
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
                 || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
             curp = f.findLeafPage(tid, root, ipred.getField());
@@ -1419,6 +1471,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
             if (nextp == null) {
                 return null;
             } else {
+                Database.getBufferPool().unpinPage(tid, curp.getId());
                 curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
                         nextp, Permissions.READ_ONLY);
                 it = curp.iterator();
@@ -1441,6 +1494,9 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
      */
     public void close() {
         super.close();
+        if (curp != null)
+            Database.getBufferPool().unpinPage(tid, curp.getId());
         it = null;
+        curp = null;
     }
 }
@@ -706,7 +706,7 @@ public class BTreeFileEncoder {
 	public static byte[] convertToRootPtrPage(int root, int rootCategory, int header)
 			throws IOException {
 
-		ByteArrayOutputStream baos = new ByteArrayOutputStream(BTreeRootPtrPage.getPageSize());
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(BTreeRootPtrPage.PAGE_SIZE);
 		DataOutputStream dos = new DataOutputStream(baos);
 
 		dos.writeInt(root); // root pointer
@@ -68,6 +68,15 @@ public class BTreePageId implements PageId {
 		return pgcateg;
 	}
 
+	/**
+	 * @return true for the root pointer and internal pages, which every
+	 *   lookup in the tree goes through
+	 */
+	@Override
+	public boolean isInnerNode() {
+		return pgcateg == ROOT_PTR || pgcateg == INTERNAL;
+	}
+
 	/**
 	 * @return a hash code for this page, represented by the combination of
 	 *   the table number, page number, and pgcateg (needed if a PageId is used as a
@@ -217,10 +217,12 @@ public class BTreeRootPtrPage implements Page {
 	}
 
 	/**
-	 * Get the page size of root pointer pages
+	 * Get the page size of root pointer pages, which is always
+	 * {@link #PAGE_SIZE} whatever the page size of the BTreeFile
 	 * @return the page size
 	 */
-	public static int getPageSize() {
+	@Override
+	public int getPageSize() {
 		return PAGE_SIZE;
 	}
 
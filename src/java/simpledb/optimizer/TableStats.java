@@ -118,7 +118,8 @@ public class TableStats {
                     integerHistogram.addValue(v);
                 }
                 histogramMap.put(fieldId, integerHistogram);
-            } else if (td.getFieldType(fieldId) == Type.STRING_TYPE) {
+            } else if (td.getFieldType(fieldId) == Type.STRING_TYPE
+                    || td.getFieldType(fieldId) == Type.VARSTRING_TYPE) {
                 List<String> list = fieldMap.get(fieldId);
                 Histogram<String> stringHistogram = new StringHistogram(NUM_HIST_BINS);
                 for (String v : list) {
@@ -138,7 +139,7 @@ public class TableStats {
             // Only two types are concerned in SimpleDb
             if (td.getFieldType(i) == Type.INT_TYPE) {
                 fieldMap.put(i, new ArrayList<Integer>());
-            } else if (td.getFieldType(i) == Type.STRING_TYPE) {
+            } else if (td.getFieldType(i) == Type.STRING_TYPE || td.getFieldType(i) == Type.VARSTRING_TYPE) {
                 fieldMap.put(i, new ArrayList<String>());
             }
         }
@@ -151,7 +152,8 @@ public class TableStats {
                     if (td.getFieldType(i) == Type.INT_TYPE) {
                         IntField field = (IntField) (next.getField(i));
                         fieldMap.get(i).add(field.getValue());
-                    } else if (td.getFieldType(i) == Type.STRING_TYPE) {
+                    } else if (td.getFieldType(i) == Type.STRING_TYPE
+                            || td.getFieldType(i) == Type.VARSTRING_TYPE) {
                         StringField field = (StringField) next.getField(i);
                         if (!field.getValue().equals("")) {
                             fieldMap.get(i).add(field.getValue());
@@ -161,6 +163,8 @@ public class TableStats {
             }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            seqScan.close();
         }
         return fieldMap;
     }
@@ -212,7 +216,8 @@ public class TableStats {
                 IntHistogram histogram = (IntHistogram) histogramMap.get(field);
                 return histogram.avgSelectivity();
             }
-            case STRING_TYPE: {
+            case STRING_TYPE:
+            case VARSTRING_TYPE: {
                 StringHistogram histogram = (StringHistogram) histogramMap.get(field);
                 return histogram.avgSelectivity();
             }
@@ -238,7 +243,8 @@ public class TableStats {
                     IntHistogram histogram = (IntHistogram) histogramMap.get(field);
                     return histogram.estimateSelectivity(op, ((IntField) constant).getValue());
                 }
-                case STRING_TYPE: {
+                case STRING_TYPE:
+                case VARSTRING_TYPE: {
                     StringHistogram histogram = (StringHistogram) histogramMap.get(field);
                     return histogram.estimateSelectivity(op, ((StringField) constant).getValue());
                 }
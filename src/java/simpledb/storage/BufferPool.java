@@ -1,19 +1,34 @@
 package simpledb.storage;
 
+import simpledb.common.CachePriority;
+import simpledb.common.Catalog;
 import simpledb.common.Database;
 import simpledb.common.Permissions;
 import simpledb.common.DbException;
 import simpledb.common.DeadlockException;
 import simpledb.transaction.LockManager;
+import simpledb.transaction.LockMode;
+import simpledb.transaction.LockOutcome;
 import simpledb.transaction.LockType;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
-import simpledb.utils.LRUCache;
+import simpledb.transaction.TransactionMetrics;
 
 import java.io.*;
 
+import java.lang.reflect.Constructor;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -23,6 +38,14 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * The frames are split into partitions by PageId hash, each with its own
+ * latch and replacement policy, so page fetches from many threads do not
+ * serialize on a single monitor.
+ * <p>
+ * Every getPage() pins the page it returns, and a pinned page is never
+ * evicted. Callers unpin a page with {@link #unpinPage} once they are done
+ * reading it; pins left over are dropped when the transaction completes.
  */
 public class BufferPool {
     /**
@@ -39,22 +62,306 @@ public class BufferPool {
      */
     public static final int DEFAULT_PAGES = 50;
 
-    //    private LRUCache lruCache; // A mapping from PageId to Page.
+    /**
+     * Smallest number of frames worth giving its own partition. Smaller pools
+     * are not split, so that one hot partition cannot run out of clean frames
+     * while the others sit idle.
+     */
+    private static final int MIN_PARTITION_PAGES = 64;
+
+    /**
+     * Bounds on the number of frames a large sequential scan may take, see
+     * {@link #newScanRing(int, int)}.
+     */
+    private static final int MIN_RING_PAGES = 4;
+    private static final int MAX_RING_PAGES = 128;
+
+    /**
+     * How long getPage() waits for a lock before giving up. Deadlocks are
+     * broken by the LockManager as soon as they form, so this only bounds
+     * waits the wait-for graph cannot see, such as a transaction that runs
+     * in several threads.
+     */
+    private static final long LOCK_WAIT_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * How long a page load waits for a pinned page to be unpinned when its
+     * partition has no frame left to lend, see LoadNewPage().
+     */
+    private static final long PIN_WAIT_TIMEOUT_MILLIS = 10000;
+
     private final LockManager lockManager;
-    private final Map<PageId, Page> pageMap;
-    private final int numPages;
+    private final Partition[] partitions;
+    private final FrameArena frameArena; // null unless pages live off-heap
+    private final BufferPoolMetrics metrics = new BufferPoolMetrics(this);
+
+    /**
+     * Held shared by insertTuple/deleteTuple while they modify pages, and
+     * exclusively by the background writer while it serializes dirty pages,
+     * so that it never writes out a half-modified page.
+     */
+    private final ReentrantReadWriteLock modificationLatch = new ReentrantReadWriteLock();
+    /**
+     * Pages written out by the background writer before the transaction that
+     * dirtied them completed, mapped to that transaction. Their before image
+     * must still be refreshed when the transaction commits. Until then they
+     * are not evicted like clean pages, only stolen like dirty ones.
+     */
+    private final Map<PageId, TransactionId> writtenAhead = new ConcurrentHashMap<>();
+    /**
+     * Held by the background writer while it writes pages outside the pool
+     * monitor; see {@link #awaitWriteAhead()}. Nothing else is locked while
+     * it is held.
+     */
+    private final ReentrantLock writeAheadIo = new ReentrantLock();
+    /**
+     * Held in shared mode by each stealPage() while it forces the log and
+     * writes its victim outside the pool monitor; see {@link #awaitSteals()}.
+     */
+    private final ReentrantReadWriteLock stealIo = new ReentrantReadWriteLock();
+    private final PageVersions versions = new PageVersions();
+    private volatile int dirtyHighWaterMark;
+    private volatile int flushRate;
+    private DirtyPageWriter dirtyPageWriter; // protected by this
+
+    /**
+     * Where the ids of the resident pages are saved for a warm restart, or
+     * null if they are not saved; see {@link #enablePageList}.
+     */
+    private volatile File pageListFile;
+    private PageListWriter pageListWriter; // protected by this
+
+    /**
+     * The pins each transaction holds, in the order they were taken.
+     */
+    private final Map<TransactionId, List<Pin>> pinsOf = new ConcurrentHashMap<>();
+    private final AtomicLong pinSequence = new AtomicLong();
+
+    /**
+     * Threads performing asynchronous read-ahead for sequential scans.
+     */
+    private static final ExecutorService readAheadExecutor = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "BufferPool read-ahead");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
+     * One shard of the pool. Every page lives in the partition its PageId
+     * hashes to; each partition has its own frame table, latch and
+     * replacement state. Lookups read the ConcurrentHashMap without locking,
+     * and the partition monitor is only held while changing which pages are
+     * resident -- never around disk or log I/O.
+     */
+    private static class Partition {
+        private final int index;
+        private final Map<PageId, Page> pageMap;
+        private final Map<PageId, Integer> frames; // arena frame of each off-heap page
+        /**
+         * Pin count of each resident page. A count is set to -1, under the
+         * latch, when its page leaves the pool, so that a lock-free hit can
+         * never pin a page that is being evicted.
+         */
+        private final Map<PageId, AtomicInteger> pinCounts;
+        private final ReplacementPolicy replacementPolicy;
+        private final int numPages;
+        private final long budgetBytes; // 0 if the pool is sized in pages
+        private volatile long usedBytes; // written under this
+        private final Map<Integer, Long> tableBytes; // bytes held per table, protected by this
+        /**
+         * Pages evicted and discardPage() calls so far, protected by this.
+         * Readers that load pages without a lock drop what they read if it
+         * changed meanwhile.
+         */
+        private long removals;
+
+        Partition(int index, int numPages, long budgetBytes, IntFunction<ReplacementPolicy> policyFactory) {
+            this.index = index;
+            this.pageMap = new ConcurrentHashMap<>();
+            this.frames = new HashMap<>();
+            this.pinCounts = new ConcurrentHashMap<>();
+            this.tableBytes = new HashMap<>();
+            this.replacementPolicy = new PriorityReplacementPolicy(CachePriority.values().length,
+                    () -> policyFactory.apply(numPages), BufferPool::evictionRank);
+            this.numPages = numPages;
+            this.budgetBytes = budgetBytes;
+        }
+
+        /**
+         * @return the number of bytes of pages this partition may hold. A
+         * pool sized in pages holds that many pages of the default size.
+         */
+        long capacityBytes() {
+            return budgetBytes > 0 ? budgetBytes : (long) numPages * getPageSize();
+        }
+
+        /**
+         * @return whether a page of the given size fits without evicting
+         * anything. An empty partition takes any page. Must be called with
+         * the latch held.
+         */
+        boolean hasRoom(int pageSize) {
+            return pageMap.isEmpty() || usedBytes + pageSize <= capacityBytes();
+        }
+
+        void charge(Page page) {
+            usedBytes += page.getPageSize();
+            tableBytes.merge(page.getId().getTableId(), (long) page.getPageSize(), Long::sum);
+        }
+
+        void refund(Page page) {
+            usedBytes -= page.getPageSize();
+            tableBytes.merge(page.getId().getTableId(), (long) -page.getPageSize(),
+                    (a, b) -> a + b == 0 ? null : a + b);
+        }
+
+        long bytesOf(int tableId) {
+            return tableBytes.getOrDefault(tableId, 0L);
+        }
+    }
+
+    /**
+     * Outcome of one evictPage() call.
+     */
+    private enum Eviction {
+        EVICTED, // a clean page was evicted
+        PINNED,  // the clean pages are all pinned
+        DIRTY    // every other page is dirty
+    }
+
+    /**
+     * One pin held by a transaction. The count is the one of the page
+     * incarnation that was pinned, so unpinning a page that has since been
+     * discarded and loaded again does not touch the new frame.
+     */
+    private static class Pin {
+        private final PageId pid;
+        private final AtomicInteger count;
+        private final long seq;
+
+        Pin(PageId pid, AtomicInteger count, long seq) {
+            this.pid = pid;
+            this.count = count;
+            this.seq = seq;
+        }
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, using CLOCK
+     * replacement.
      *
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
         // some code goes here
-//        this.lruCache = new LRUCache(numPages);
+        this(numPages, ClockReplacementPolicy::new);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and picks victims
+     * with the given replacement policy. The pool is split into one partition
+     * per core, as long as every partition gets at least
+     * {@link #MIN_PARTITION_PAGES} frames.
+     *
+     * @param numPages      maximum number of pages in this buffer pool.
+     * @param policyFactory creates the replacement policy of one partition,
+     *                      given the number of frames in that partition.
+     */
+    public BufferPool(int numPages, IntFunction<ReplacementPolicy> policyFactory) {
+        this(numPages, defaultNumPartitions(numPages), policyFactory);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages spread over
+     * numPartitions partitions.
+     *
+     * @param numPages      maximum number of pages in this buffer pool.
+     * @param numPartitions number of independently latched partitions.
+     * @param policyFactory creates the replacement policy of one partition,
+     *                      given the number of frames in that partition.
+     */
+    public BufferPool(int numPages, int numPartitions, IntFunction<ReplacementPolicy> policyFactory) {
+        this(numPages, numPartitions, policyFactory, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages spread over
+     * numPartitions partitions, optionally keeping HeapFile pages in a
+     * preallocated off-heap {@link FrameArena}. Off-heap pages only keep
+     * their header and modified tuples on the Java heap.
+     *
+     * @param numPages      maximum number of pages in this buffer pool.
+     * @param numPartitions number of independently latched partitions.
+     * @param policyFactory creates the replacement policy of one partition,
+     *                      given the number of frames in that partition.
+     * @param offHeapFrames whether to back HeapFile pages with off-heap frames.
+     */
+    public BufferPool(int numPages, int numPartitions, IntFunction<ReplacementPolicy> policyFactory,
+                      boolean offHeapFrames) {
+        this(numPages, 0, numPartitions, policyFactory, offHeapFrames);
+    }
+
+    /**
+     * Creates a BufferPool that holds at most budgetBytes bytes of pages,
+     * using CLOCK replacement. Every resident page is charged its own
+     * {@link Page#getPageSize() size}, so tables with different page sizes
+     * share the budget fairly.
+     *
+     * @param budgetBytes the memory budget of this buffer pool in bytes.
+     */
+    public static BufferPool withMemoryBudget(long budgetBytes) {
+        int numPages = (int) Math.min(Integer.MAX_VALUE, budgetBytes / pageSize);
+        return withMemoryBudget(budgetBytes, defaultNumPartitions(numPages), ClockReplacementPolicy::new);
+    }
+
+    /**
+     * Creates a BufferPool that holds at most budgetBytes bytes of pages
+     * spread over numPartitions partitions.
+     *
+     * @param budgetBytes   the memory budget of this buffer pool in bytes.
+     * @param numPartitions number of independently latched partitions.
+     * @param policyFactory creates the replacement policy of one partition,
+     *                      given the number of default-size pages that fit in
+     *                      that partition.
+     */
+    public static BufferPool withMemoryBudget(long budgetBytes, int numPartitions,
+                                              IntFunction<ReplacementPolicy> policyFactory) {
+        if (budgetBytes <= 0)
+            throw new IllegalArgumentException("Invalid memory budget: " + budgetBytes);
+        int numPages = (int) Math.min(Integer.MAX_VALUE, budgetBytes / pageSize);
+        return new BufferPool(numPages, budgetBytes, numPartitions, policyFactory, false);
+    }
+
+    /**
+     * @param numPages    the capacity in default-size pages
+     * @param budgetBytes the capacity in bytes, or 0 to hold numPages pages
+     *                    of whatever the default page size is at the time
+     */
+    private BufferPool(int numPages, long budgetBytes, int numPartitions,
+                       IntFunction<ReplacementPolicy> policyFactory, boolean offHeapFrames) {
+        if (numPartitions < 1 || numPartitions > Math.max(1, numPages))
+            throw new IllegalArgumentException("Invalid number of partitions: " + numPartitions);
         this.lockManager = new LockManager();
-        this.pageMap = new HashMap<>();
-        this.numPages = numPages;
+        this.partitions = new Partition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            // spread the remainder over the first partitions
+            int frames = numPages / numPartitions + (i < numPages % numPartitions ? 1 : 0);
+            long bytes = budgetBytes / numPartitions + (i < budgetBytes % numPartitions ? 1 : 0);
+            partitions[i] = new Partition(i, frames, bytes, policyFactory);
+        }
+        // A partition may briefly hold one page more than its share, see cachePage().
+        this.frameArena = offHeapFrames ? new FrameArena(numPages + numPartitions, pageSize) : null;
+    }
+
+    private static int defaultNumPartitions(int numPages) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cores, numPages / MIN_PARTITION_PAGES));
+    }
+
+    private Partition partitionOf(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return partitions[Math.floorMod(h, partitions.length)];
     }
 
     public static int getPageSize() {
@@ -88,35 +395,520 @@ public class BufferPool {
      */
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page on behalf of a large sequential scan. Pages
+     * the scan has to load take frames of the given ring instead of
+     * displacing the rest of the pool, and hits do not count as references
+     * for the replacement policy.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param ring the scan's ring, or null to cache the page normally
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanRing ring)
+            throws TransactionAbortedException, DbException {
         // some code goes here
-        long start = System.currentTimeMillis();
-        long timeOut = (long) (200 + Math.random() * 1000L);
-        while (!this.lockManager.tryLock(tid, pid, perm)) {
-            if (System.currentTimeMillis() - start > timeOut)
+        if (versions.isSnapshot(tid))
+            return snapshotPage(tid, pid, perm);
+        if (!this.lockManager.tryLock(tid, pid, perm)) {
+            // queue up for the lock; a deadlock victim is refused at once
+            long waitStart = System.nanoTime();
+            LockOutcome outcome = lockManager.lock(tid, pid, perm, LOCK_WAIT_TIMEOUT_MILLIS);
+            lockManager.getMetrics().recordLockWait(System.nanoTime() - waitStart, outcome);
+            if (!outcome.isGranted())
                 throw new TransactionAbortedException();
         }
-        if (pageMap.containsKey(pid)) return pageMap.get(pid);
+        return fetchPage(tid, pid, ring);
+    }
+
+    /**
+     * Retrieve the specified page if the lock on it can be granted at once.
+     * Unlike getPage(), this never waits for another transaction.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return the page, or null if another transaction holds a conflicting lock
+     */
+    public Page tryGetPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        if (versions.isSnapshot(tid))
+            return snapshotPage(tid, pid, perm);
+        if (!lockManager.tryLock(tid, pid, perm))
+            return null;
+        return fetchPage(tid, pid, null);
+    }
+
+    /**
+     * Start a snapshot transaction: until it completes, it reads every page
+     * as it was committed when this method was called, without taking locks
+     * and without being blocked by writers. It may not write.
+     *
+     * @param tid the ID of the transaction, which must not have read or
+     *            written anything yet
+     */
+    public void beginSnapshot(TransactionId tid) {
+        versions.begin(tid);
+    }
+
+    private Page snapshotPage(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if (perm != Permissions.READ_ONLY)
+            throw new DbException("snapshot transaction " + tid.getId() + " cannot write " + pid);
+        return versions.read(tid, pid, this::residentPage);
+    }
+
+    private Page residentPage(PageId pid) {
+        return partitionOf(pid).pageMap.get(pid);
+    }
+
+    /**
+     * Pin the page, reading it in if it is not resident. The caller holds
+     * the lock on it.
+     */
+    private Page fetchPage(TransactionId tid, PageId pid, ScanRing ring)
+            throws TransactionAbortedException, DbException {
+        Partition partition = partitionOf(pid);
+        Page page = pinResident(partition, tid, pid);
+        if (page != null) {
+            metrics.hits.increment();
+            if (ring == null)
+                partition.replacementPolicy.recordAccess(pid);
+            return page;
+        }
         //if the page is not in the BufferPool, then load the page into it.
-        return LoadNewPage(pid);
+        metrics.misses.increment();
+        long missStart = System.nanoTime();
+        page = LoadNewPage(partition, tid, pid, ring);
+        metrics.missLatency.record(System.nanoTime() - missStart);
+        return page;
+    }
+
+    /**
+     * Pin a resident page without taking the partition latch.
+     *
+     * @return the page, or null if it is not resident or just leaving the pool
+     */
+    private Page pinResident(Partition partition, TransactionId tid, PageId pid) {
+        Page page = partition.pageMap.get(pid);
+        AtomicInteger count = partition.pinCounts.get(pid);
+        if (page == null || count == null || !tryPin(count))
+            return null;
+        if (partition.pageMap.get(pid) != page) { // replaced in the meantime
+            unpin(count);
+            return null;
+        }
+        recordPin(tid, pid, count);
+        return page;
+    }
+
+    private static boolean tryPin(AtomicInteger count) {
+        while (true) {
+            int pins = count.get();
+            if (pins < 0)
+                return false;
+            if (count.compareAndSet(pins, pins + 1))
+                return true;
+        }
+    }
+
+    private static void unpin(AtomicInteger count) {
+        while (true) {
+            int pins = count.get();
+            if (pins <= 0 || count.compareAndSet(pins, pins - 1))
+                return;
+        }
+    }
+
+    /**
+     * Mark a page that is leaving the pool, unless it is pinned. Must be
+     * called with the partition latch held.
+     *
+     * @return true if the page may be removed
+     */
+    private static boolean tryRetire(Partition partition, PageId pid) {
+        AtomicInteger count = partition.pinCounts.get(pid);
+        return count == null || count.compareAndSet(0, -1);
+    }
+
+    private void recordPin(TransactionId tid, PageId pid, AtomicInteger count) {
+        List<Pin> pins = pinsOf.computeIfAbsent(tid, t -> new ArrayList<>());
+        synchronized (pins) {
+            pins.add(new Pin(pid, count, pinSequence.incrementAndGet()));
+        }
+    }
+
+    /**
+     * Unpin a page the given transaction got from {@link #getPage}. Every
+     * getPage() call pins the page once, so a page fetched twice has to be
+     * unpinned twice before it can be evicted.
+     *
+     * @param tid the transaction that fetched the page
+     * @param pid the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        List<Pin> pins = pinsOf.get(tid);
+        if (pins == null)
+            return;
+        Pin pin = null;
+        synchronized (pins) {
+            for (int i = pins.size() - 1; i >= 0; i--) {
+                if (pins.get(i).pid.equals(pid)) {
+                    pin = pins.remove(i);
+                    break;
+                }
+            }
+        }
+        if (pin != null) {
+            unpin(pin.count);
+            returnBorrowedFrame(partitionOf(pid));
+        }
+    }
+
+    /**
+     * Unpin every page the given transaction pinned after the pin sequence
+     * number mark, or every page it pinned if mark is negative.
+     */
+    private void unpinSince(TransactionId tid, long mark) {
+        List<Pin> pins = pinsOf.get(tid);
+        if (pins == null)
+            return;
+        Set<Partition> unpinned = new HashSet<>();
+        synchronized (pins) {
+            Iterator<Pin> iterator = pins.iterator();
+            while (iterator.hasNext()) {
+                Pin pin = iterator.next();
+                if (pin.seq > mark) {
+                    unpin(pin.count);
+                    unpinned.add(partitionOf(pin.pid));
+                    iterator.remove();
+                }
+            }
+        }
+        // outside the pin list: LoadNewPage() records pins under the latch
+        for (Partition partition : unpinned)
+            returnBorrowedFrame(partition);
+    }
+
+    /**
+     * Once a partition that lent out a frame has an unpinned clean page
+     * again, evict it to get back within its share, and wake up the loads
+     * waiting for a frame.
+     */
+    private void returnBorrowedFrame(Partition partition) {
+        if (partition.usedBytes <= partition.capacityBytes())
+            return;
+        synchronized (partition) {
+            Eviction eviction = Eviction.EVICTED;
+            while (!partition.hasRoom(0) && eviction == Eviction.EVICTED)
+                eviction = evictPage(partition);
+            partition.notifyAll();
+        }
+    }
+
+    /**
+     * @return the number of pins the given transaction holds
+     */
+    public int getNumPins(TransactionId tid) {
+        List<Pin> pins = pinsOf.get(tid);
+        if (pins == null)
+            return 0;
+        synchronized (pins) {
+            return pins.size();
+        }
     }
 
-    private Page LoadNewPage(PageId pid) throws DbException {
+    private Page LoadNewPage(Partition partition, TransactionId tid, PageId pid, ScanRing ring) throws DbException {
+        // Read outside the partition latch so that hits on other pages of
+        // this partition do not wait for the disk.
         DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        Page page = dbFile.readPage(pid);
-//        if (page != null) {
-//            if (lruCache.getMaxSize() == lruCache.getSize())
-//                evictPage();
-//            lruCache.put(pid, page);
-//        }
-        if (pageMap.size() >= numPages) {
-            synchronized (this.pageMap) {
-                evictPage();
+        int frameNo = -1;
+        // memory-mapped files hand out views of the mapping instead
+        if (frameArena != null && dbFile instanceof HeapFile && !((HeapFile) dbFile).isMemoryMapped()
+                && frameArena.getFrameSize() == dbFile.getPageSize())
+            frameNo = frameArena.acquire(); // fall back to a heap page if the arena is exhausted
+        Page page;
+        if (frameNo != -1) {
+            try {
+                page = ((HeapFile) dbFile).readPage((HeapPageId) pid, frameArena.view(frameNo));
+            } catch (IOException e) {
+                frameArena.release(frameNo);
+                throw new DbException("could not read page " + pid + ": " + e.getMessage());
+            }
+        } else {
+            page = dbFile.readPage(pid);
+        }
+        boolean awaitUnpin = false;
+        long deadline = System.currentTimeMillis() + PIN_WAIT_TIMEOUT_MILLIS;
+        while (true) {
+            Eviction eviction;
+            synchronized (partition) {
+                Page resident = partition.pageMap.get(pid);
+                if (resident != null) { // loaded by another thread in the meantime
+                    if (frameNo != -1)
+                        frameArena.release(frameNo);
+                    AtomicInteger count = partition.pinCounts.get(pid);
+                    if (count.get() < 0) {
+                        // being stolen: wait until it is on disk, then read it again
+                        awaitSteal(partition, pid, resident);
+                        return LoadNewPage(partition, tid, pid, ring);
+                    }
+                    count.incrementAndGet();
+                    recordPin(tid, pid, count);
+                    partition.replacementPolicy.recordAccess(pid);
+                    return resident;
+                }
+                eviction = makeRoom(partition, pid, page.getPageSize());
+                // Eviction.PINNED: the clean pages are all pinned. Borrow a
+                // frame beyond the partition's share, unless it lent one out
+                // already; an unpin gives it back, see returnBorrowedFrame().
+                if (eviction == Eviction.EVICTED
+                        || (eviction == Eviction.PINNED && partition.hasRoom(0))) {
+                    AtomicInteger count = new AtomicInteger(1);
+                    partition.pageMap.put(pid, page);
+                    partition.charge(page);
+                    partition.pinCounts.put(pid, count);
+                    if (frameNo != -1)
+                        partition.frames.put(pid, frameNo);
+                    partition.replacementPolicy.recordInsert(pid);
+                    recordPin(tid, pid, count);
+                    break;
+                }
+                if (awaitUnpin) {
+                    awaitUnpin = false;
+                    long left = deadline - System.currentTimeMillis();
+                    try {
+                        if (left > 0)
+                            partition.wait(left);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        left = 0;
+                    }
+                    if (left <= 0) {
+                        if (frameNo != -1)
+                            frameArena.release(frameNo);
+                        throw new DbException("All the pages are pinned in BufferPool!");
+                    }
+                    continue;
+                }
+            }
+            // Write out a dirty page and try again.
+            if (!stealPage(partition)) {
+                if (eviction == Eviction.DIRTY) {
+                    if (frameNo != -1)
+                        frameArena.release(frameNo);
+                    throw new DbException("All the pages are dirty in BufferPool!");
+                }
+                // nothing to steal either: wait for a page to be unpinned
+                awaitUnpin = true;
             }
         }
-        pageMap.putIfAbsent(pid, page);
+        if (ring != null)
+            recycle(ring.add(pid));
         return page;
     }
 
+    /**
+     * Wait, with the partition latch held, until a page that stealPage() is
+     * writing out has left the pool.
+     */
+    private static void awaitSteal(Partition partition, PageId pid, Page page) throws DbException {
+        while (partition.pageMap.get(pid) == page) {
+            try {
+                partition.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for page " + pid);
+            }
+        }
+    }
+
+    /**
+     * Evict a dirty page of the given partition (STEAL). The page must be
+     * unpinned, and its transaction must still be live in the log so that
+     * rollback and recovery can undo the change. Following the write-ahead
+     * rule, the UPDATE record is appended and the log forced before the page
+     * itself is written.
+     * <p>
+     * While the page is being written it stays resident with a pin count of
+     * -1: nobody can pin it, and a thread asking for it waits in
+     * LoadNewPage() until it is gone. The victim is picked and its UPDATE
+     * record appended under the pool monitor, which keeps LogFile rollback
+     * and checkpoints out; the log force and the page write happen after the
+     * monitor is released, so that misses in other partitions do not wait
+     * for them. Rollback and checkpoints wait for them instead, see
+     * awaitSteals().
+     *
+     * @return false if no page of the partition can be stolen
+     */
+    private boolean stealPage(Partition partition) throws DbException {
+        LogFile logFile = Database.getLogFile();
+        PageId victim;
+        Page page;
+        TransactionId dirtier;
+        IOException failure = null;
+        synchronized (this) {
+            synchronized (partition) {
+                victim = partition.replacementPolicy.evict(pid -> {
+                    Page p = partition.pageMap.get(pid);
+                    if (p == null)
+                        return false;
+                    // a page written ahead is on disk already and only needs to go
+                    TransactionId d = p.isDirty() != null ? p.isDirty() : writtenAhead.get(pid);
+                    return d != null && logFile.isActive(d) && tryRetire(partition, pid);
+                });
+                if (victim == null)
+                    return false;
+                page = partition.pageMap.get(victim);
+            }
+            dirtier = page.isDirty();
+            if (dirtier != null) {
+                try {
+                    versions.preserve(victim, page.getBeforeImage());
+                    logFile.logWrite(dirtier, page.getBeforeImage(), page);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+            stealIo.readLock().lock();
+        }
+        boolean written = false;
+        try {
+            if (failure != null)
+                throw failure;
+            if (dirtier != null)
+                logFile.force();
+            // an older version of the page may still be on its way to disk
+            awaitWriteAhead();
+            if (dirtier != null) {
+                long start = System.nanoTime();
+                Database.getCatalog().getDatabaseFile(victim.getTableId()).writePage(page);
+                metrics.flushLatency.record(System.nanoTime() - start);
+                metrics.pagesFlushed.increment();
+                page.markDirty(false, null);
+            }
+            metrics.steals.increment();
+            written = true;
+        } catch (IOException e) {
+            throw new DbException("could not steal page " + victim + ": " + e.getMessage());
+        } finally {
+            synchronized (partition) {
+                if (partition.pageMap.get(victim) == page) {
+                    if (written) {
+                        partition.pageMap.remove(victim);
+                        partition.pinCounts.remove(victim);
+                        partition.refund(page);
+                        partition.removals++;
+                        releaseFrame(partition, victim, page);
+                    } else {
+                        partition.pinCounts.get(victim).set(0);
+                        partition.replacementPolicy.recordInsert(victim);
+                    }
+                }
+                partition.notifyAll();
+            }
+            stealIo.readLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Wait until the pages stealPage() is writing out are on disk and have
+     * left the pool. The caller must hold the pool monitor, so that no
+     * further steal starts, but not the LogFile monitor, which a steal needs
+     * to force the log.
+     */
+    void awaitSteals() {
+        stealIo.writeLock().lock();
+        stealIo.writeLock().unlock();
+    }
+
+    /**
+     * @return a ring for a sequential scan over a table of the given number of
+     * default-size pages, see {@link #newScanRing(int, int)}.
+     */
+    public ScanRing newScanRing(int tablePages) {
+        return newScanRing(tablePages, getPageSize());
+    }
+
+    /**
+     * @return a ring for a sequential scan over a table of the given number of
+     * pages of the given size, or null if the table is small enough to be
+     * cached normally. A table larger than the pool cannot stay cached
+     * anyway, so scanning it through the whole pool would only push out
+     * everything else.
+     */
+    public ScanRing newScanRing(int tablePages, int tablePageSize) {
+        long budget = getMemoryBudget();
+        if ((long) tablePages * tablePageSize <= budget)
+            return null;
+        long ringPages = budget / 8 / tablePageSize;
+        return new ScanRing((int) Math.max(MIN_RING_PAGES, Math.min(MAX_RING_PAGES, ringPages)));
+    }
+
+    /**
+     * Drop a page that fell out of a scan ring, unless it has been dirtied
+     * since the scan loaded it.
+     */
+    private void recycle(PageId pid) {
+        if (pid == null)
+            return;
+        Partition partition = partitionOf(pid);
+        synchronized (partition) {
+            Page page = partition.pageMap.get(pid);
+            if (page == null || page.isDirty() != null || writtenAhead.containsKey(pid)
+                    || !tryRetire(partition, pid))
+                return;
+            partition.pageMap.remove(pid);
+            partition.pinCounts.remove(pid);
+            partition.refund(page);
+            partition.replacementPolicy.remove(pid);
+            partition.removals++;
+            releaseFrame(partition, pid, page);
+        }
+    }
+
+    /**
+     * Give the arena frame of a page that left the pool back to the arena.
+     * The page is detached from the frame first, because an operator may
+     * still hold a reference to it. Must be called with the partition latch
+     * held.
+     */
+    private void releaseFrame(Partition partition, PageId pid, Page page) {
+        Integer frameNo = partition.frames.remove(pid);
+        if (frameNo == null)
+            return;
+        if (page instanceof HeapPage)
+            ((HeapPage) page).detachFrame();
+        frameArena.release(frameNo);
+    }
+
+    /**
+     * Lock a whole table for a transaction, waiting for the lock if needed.
+     * Under S, SIX or X the transaction then reads the table's pages (and
+     * under X also writes them) without locking each page.
+     *
+     * @param tid     the ID of the transaction requesting the lock
+     * @param tableId the table to lock
+     * @param mode    the lock mode
+     * @throws TransactionAbortedException if the lock is not granted
+     */
+    public void lockTable(TransactionId tid, int tableId, LockMode mode)
+            throws TransactionAbortedException {
+        if (versions.isSnapshot(tid))
+            return; // snapshot reads need no locks, and writes are refused by getPage()
+        if (!lockManager.tryLockTable(tid, tableId, mode)) {
+            long waitStart = System.nanoTime();
+            LockOutcome outcome = lockManager.lockTable(tid, tableId, mode, LOCK_WAIT_TIMEOUT_MILLIS);
+            lockManager.getMetrics().recordLockWait(System.nanoTime() - waitStart, outcome);
+            if (!outcome.isGranted())
+                throw new TransactionAbortedException();
+        }
+    }
+
     /**
      * Releases the lock on a page.
      * Calling this is very risky, and may result in wrong behavior. Think hard
@@ -163,32 +955,76 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1|lab2
         Set<PageId> collections = lockManager.getPageIds(tid);
-        synchronized (this.pageMap) {
-            if (commit) {
-                collections.forEach(pageId -> {
-                    if (pageMap.containsKey(pageId) && Objects.equals(pageMap.get(pageId).isDirty(), tid)) {
-                        try {
-                            flushPage(pageId);
-                            // use current page contents as the before-image
-                            // for the next transaction that modifies this page.
-                            Page page = pageMap.get(pageId);
+        if (commit) {
+            List<Page> dirtyPages = new ArrayList<>();
+            for (PageId pageId : collections) {
+                Page page = partitionOf(pageId).pageMap.get(pageId);
+                if (page != null && Objects.equals(page.isDirty(), tid))
+                    dirtyPages.add(page);
+            }
+            // keep the background writer away while the write set is flushed
+            modificationLatch.readLock().lock();
+            try {
+                // one log force for the whole write set
+                writePages(dirtyPages);
+                // snapshot transactions see all of the new versions or none
+                versions.commit(lockManager.getEXLockPages(tid), this::residentPage, () -> {
+                    for (Page page : dirtyPages) {
+                        // use current page contents as the before-image
+                        // for the next transaction that modifies this page.
+                        page.setBeforeImage();
+                        page.markDirty(false, null);
+                    }
+                    for (PageId pageId : collections) {
+                        // pages the background writer already wrote for this transaction
+                        Page page = partitionOf(pageId).pageMap.get(pageId);
+                        if (writtenAhead.remove(pageId, tid) && page != null && page.isDirty() == null)
                             page.setBeforeImage();
-                            page.markDirty(false, null);
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
                     }
                 });
-            } else {
-                Set<PageId> exLockPages = lockManager.getEXLockPages(tid);
-                collections.forEach(pageId -> {
-                    if (pageMap.containsKey(pageId) && exLockPages.contains(pageId)) {
-                        pageMap.remove(pageId);
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                modificationLatch.readLock().unlock();
+            }
+        } else {
+            synchronized (this) {
+                // Pages written out early (by the background writer or by
+                // stealPage) still hold this transaction's changes on disk.
+                // Transaction.abort() has rolled them back already; anyone
+                // aborting through the BufferPool directly needs it done here.
+                LogFile logFile = Database.getLogFile();
+                if (logFile.isActive(tid)) {
+                    try {
+                        logFile.rollback(tid);
+                    } catch (IOException e) {
+                        e.printStackTrace();
                     }
-                });
+                }
             }
-        }
-        lockManager.releaseAllLocks(tid);
+            Set<PageId> exLockPages = lockManager.getEXLockPages(tid);
+            collections.forEach(pageId -> {
+                writtenAhead.remove(pageId, tid);
+                if (exLockPages.contains(pageId))
+                    discardPage(pageId);
+            });
+            versions.abort(exLockPages);
+            // the pages it filled have room again for the free-space map
+            Catalog catalog = Database.getCatalog();
+            for (PageId pageId : exLockPages) {
+                try {
+                    DbFile file = catalog.getDatabaseFile(pageId.getTableId());
+                    if (file instanceof HeapFile)
+                        ((HeapFile) file).rolledBack(pageId);
+                } catch (NoSuchElementException ignored) {
+                    // the table was dropped
+                }
+            }
+        }
+        versions.end(tid);
+        unpinSince(tid, -1);
+        pinsOf.remove(tid);
+        lockManager.releaseAllLocks(tid);
         //        if (commit) { //Commit successfully
 //            try {
 //                flushPages(tid);
@@ -222,11 +1058,18 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> pages = dbFile.insertTuple(tid, t);
-        for (Page page : pages) {
-//            lruCache.put(page.getId(), page);
-            page.markDirty(true, tid);
-            pageMap.put(page.getId(), page);
+        long mark = pinSequence.get();
+        modificationLatch.readLock().lock();
+        try {
+            List<Page> pages = dbFile.insertTuple(tid, t);
+            for (Page page : pages) {
+                page.markDirty(true, tid);
+                cachePage(page);
+            }
+        } finally {
+            modificationLatch.readLock().unlock();
+            // the pages stay pinned until they are marked dirty
+            unpinSince(tid, mark);
         }
     }
 
@@ -250,11 +1093,40 @@ public class BufferPool {
         // "tableId" can be ascertained by the information of "Tuple t"
         int tableId = t.getRecordId().getPageId().getTableId();
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
-        List<Page> pages = dbFile.deleteTuple(tid, t);
-        for (Page page : pages) {
-//            lruCache.put(page.getId(), page);
-            pageMap.put(page.getId(), page);
-            page.markDirty(true, tid);
+        long mark = pinSequence.get();
+        modificationLatch.readLock().lock();
+        try {
+            List<Page> pages = dbFile.deleteTuple(tid, t);
+            for (Page page : pages) {
+                cachePage(page);
+                page.markDirty(true, tid);
+            }
+        } finally {
+            modificationLatch.readLock().unlock();
+            unpinSince(tid, mark);
+        }
+    }
+
+    /**
+     * Put a page modified by insertTuple/deleteTuple back into the cache,
+     * replacing any older version of it.
+     */
+    private void cachePage(Page page) {
+        Partition partition = partitionOf(page.getId());
+        synchronized (partition) {
+            Page old = partition.pageMap.put(page.getId(), page);
+            partition.pinCounts.putIfAbsent(page.getId(), new AtomicInteger(0));
+            if (old == null) {
+                partition.charge(page);
+                partition.replacementPolicy.recordInsert(page.getId());
+            } else {
+                if (old != page) {
+                    partition.refund(old);
+                    partition.charge(page);
+                    releaseFrame(partition, page.getId(), old);
+                }
+                partition.replacementPolicy.recordAccess(page.getId());
+            }
         }
     }
 
@@ -266,24 +1138,19 @@ public class BufferPool {
     public synchronized void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-//        Iterator<Page> iterator = lruCache.valueIterator();
-//        // Iterate through all the pages in LRUCache, and flush all of them to disk
-//        while (iterator.hasNext()) {
-//            PageId pid = iterator.next().getId();
-//            System.out.println("Flushing All pages!");
-//            flushPage(pid);
-//        }
-        pageMap.forEach((pageId, page) -> {
-            try {
-                if (page.isDirty() != null) {
-                    flushPage(pageId);
-                    page.setBeforeImage();
-                    page.markDirty(false, null);
+        for (Partition partition : partitions) {
+            partition.pageMap.forEach((pageId, page) -> {
+                try {
+                    if (page.isDirty() != null) {
+                        flushPage(pageId);
+                        page.setBeforeImage();
+                        page.markDirty(false, null);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
+            });
+        }
     }
 
     /**
@@ -295,12 +1162,26 @@ public class BufferPool {
      * Also used by B+ tree files to ensure that deleted pages
      * are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
         // Implement this in lab2!!!!!!!!!
-//        lruCache.remove(pid);
-        pageMap.remove(pid);
+        Partition partition = partitionOf(pid);
+        synchronized (partition) {
+            // Counted even if the page is not resident: rollback discards a
+            // page after writing its before image, and a read-ahead that read
+            // the page from disk before that must not stage what it read.
+            partition.removals++;
+            Page page = partition.pageMap.remove(pid);
+            AtomicInteger count = partition.pinCounts.remove(pid);
+            if (count != null)
+                count.set(-1); // outstanding pins on the discarded page are void
+            if (page != null) {
+                partition.refund(page);
+                releaseFrame(partition, pid, page);
+                partition.replacementPolicy.remove(pid);
+            }
+        }
     }
 
     /**
@@ -308,80 +1189,793 @@ public class BufferPool {
      *
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // some code goes here
         // not necessary for lab1
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-//        Page page = lruCache.get(pid);
-        Page page = pageMap.get(pid);
-        // append an update record to the log, with
-        // a before-image and after-image.
-        TransactionId dirtier = page.isDirty();
-        if (dirtier != null) {
-            Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-            Database.getLogFile().force();
-        }
-        dbFile.writePage(page);
+        // No partition latch is held here: the log and the disk are accessed
+        // by this thread alone, and the page itself is protected by the
+        // page lock of the transaction that dirtied it.
+        Page page = partitionOf(pid).pageMap.get(pid);
+        if (page == null)
+            return;
+        if (page.isDirty() != null) // uncommitted changes go to disk
+            versions.preserve(pid, page.getBeforeImage());
+        writePages(Collections.singletonList(page));
         page.markDirty(false, null);
     }
 
+    /**
+     * Write the given pages to disk following the write-ahead rule: append
+     * an UPDATE record with a before-image and after-image for each dirty
+     * page, force the log once, and only then write the pages themselves.
+     * The pages are not marked clean.
+     */
+    private void writePages(List<Page> pages) throws IOException {
+        if (pages.isEmpty())
+            return;
+        LogFile logFile = Database.getLogFile();
+        boolean logged = false;
+        for (Page page : pages) {
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null) {
+                logFile.logWrite(dirtier, page.getBeforeImage(), page);
+                logged = true;
+            }
+        }
+        if (logged)
+            logFile.force();
+        awaitWriteAhead();
+        for (Page page : pages) {
+            long start = System.nanoTime();
+            Database.getCatalog().getDatabaseFile(page.getId().getTableId()).writePage(page);
+            metrics.flushLatency.record(System.nanoTime() - start);
+        }
+        metrics.pagesFlushed.add(pages.size());
+    }
+
     /**
      * Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
         // Go through all the pages in BufferPool
-//        Iterator<Page> pageIterator = lruCache.valueIterator();
-//        while (pageIterator.hasNext()) {
-//            Page next = pageIterator.next();
-//            if (next.isDirty() == tid) {
-//                flushPage(next.getId());
-//            }
-//        }
-        pageMap.forEach((pageId, page) -> {
-            if (page.isDirty() == tid) {
+        for (Partition partition : partitions) {
+            partition.pageMap.forEach((pageId, page) -> {
+                if (page.isDirty() == tid) {
+                    try {
+                        flushPage(pageId);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Ask for pages of a HeapFile to be read ahead in the background. Returns
+     * immediately; see {@link #prefetchPages}.
+     */
+    public void readAhead(HeapFile heapFile, int firstPgNo, int count) {
+        readAhead(heapFile, firstPgNo, count, null);
+    }
+
+    /**
+     * Ask for pages of a HeapFile to be read ahead in the background, into
+     * the frames of the given scan ring. Returns immediately.
+     */
+    public void readAhead(HeapFile heapFile, int firstPgNo, int count, ScanRing ring) {
+        readAheadExecutor.execute(() -> {
+            try {
+                prefetchPages(heapFile, firstPgNo, count, ring);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Read a run of consecutive HeapFile pages with one large read and stage
+     * those not yet resident in the pool. No locks are taken: a later
+     * getPage() still locks the page before handing it out. Staging is
+     * skipped for a page if its partition has given up or discarded any page
+     * since the read started (it could be a newer version of this one, or a
+     * page rolled back on disk), or if no clean page can be evicted to make
+     * room.
+     *
+     * @param heapFile  the file to read from
+     * @param firstPgNo the number of the first page to read
+     * @param count     the maximum number of pages to read
+     */
+    public void prefetchPages(HeapFile heapFile, int firstPgNo, int count) throws IOException {
+        prefetchPages(heapFile, firstPgNo, count, null);
+    }
+
+    /**
+     * Like {@link #prefetchPages(HeapFile, int, int)}, but the staged pages
+     * take frames of the given scan ring.
+     */
+    public void prefetchPages(HeapFile heapFile, int firstPgNo, int count, ScanRing ring) throws IOException {
+        int end = Math.min(firstPgNo + count, heapFile.numPages());
+        long[] removalsBefore = new long[partitions.length];
+        boolean anyMissing = false;
+        for (int i = 0; i < partitions.length; i++) {
+            synchronized (partitions[i]) {
+                removalsBefore[i] = partitions[i].removals;
+            }
+        }
+        for (int pgNo = firstPgNo; pgNo < end && !anyMissing; pgNo++) {
+            PageId pid = new HeapPageId(heapFile.getId(), pgNo);
+            anyMissing = !partitionOf(pid).pageMap.containsKey(pid);
+        }
+        if (!anyMissing)
+            return;
+        for (HeapPage page : heapFile.readPages(firstPgNo, end - firstPgNo)) {
+            PageId pid = page.getId();
+            Partition partition = partitionOf(pid);
+            PageId dropped;
+            synchronized (partition) {
+                if (partition.removals != removalsBefore[partition.index]
+                        || partition.pageMap.containsKey(pid))
+                    continue;
+                // read-ahead neither borrows frames nor steals dirty pages
+                if (makeRoom(partition, pid, page.getPageSize()) != Eviction.EVICTED)
+                    continue;
+                // the eviction itself must not invalidate later pages
+                removalsBefore[partition.index] = partition.removals;
+                partition.pageMap.put(pid, page);
+                partition.charge(page);
+                partition.pinCounts.put(pid, new AtomicInteger(0));
+                partition.replacementPolicy.recordInsert(pid);
+                dropped = ring == null ? null : ring.add(pid);
+            }
+            // outside the latch: the dropped page may live in another partition
+            if (dropped != null) {
+                Partition other = partitionOf(dropped);
+                synchronized (other) {
+                    // our own recycling must not invalidate later pages either
+                    boolean unchanged = other.removals == removalsBefore[other.index];
+                    recycle(dropped);
+                    if (unchanged)
+                        removalsBefore[other.index] = other.removals;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of default-size pages this pool may hold
+     */
+    public int getNumPages() {
+        return (int) Math.min(Integer.MAX_VALUE, getMemoryBudget() / getPageSize());
+    }
+
+    /**
+     * @return the number of bytes of pages this pool may hold
+     */
+    public long getMemoryBudget() {
+        long budget = 0;
+        for (Partition partition : partitions)
+            budget += partition.capacityBytes();
+        return budget;
+    }
+
+    /**
+     * @return the number of bytes of pages currently in the pool
+     */
+    public long getResidentBytes() {
+        long used = 0;
+        for (Partition partition : partitions)
+            used += partition.usedBytes;
+        return used;
+    }
+
+    /**
+     * @return the number of bytes of pages of the given table currently in
+     * the pool
+     */
+    public long getResidentBytes(int tableId) {
+        long used = 0;
+        for (Partition partition : partitions) {
+            synchronized (partition) {
+                used += partition.bytesOf(tableId);
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return the number of pages currently in the pool
+     */
+    public int getNumResidentPages() {
+        int resident = 0;
+        for (Partition partition : partitions)
+            resident += partition.pageMap.size();
+        return resident;
+    }
+
+    /**
+     * @return the counters of this pool, see {@link BufferPoolMetricsMXBean}
+     */
+    public BufferPoolMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the lock and transaction counters of this pool's lock manager
+     */
+    public TransactionMetrics getTransactionMetrics() {
+        return lockManager.getMetrics();
+    }
+
+    /**
+     * @return the number of dirty pages currently in the pool
+     */
+    public int getNumDirtyPages() {
+        int dirty = 0;
+        for (Partition partition : partitions) {
+            for (Page page : partition.pageMap.values()) {
+                if (page.isDirty() != null)
+                    dirty++;
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Start a background thread that writes dirty pages ahead of commit and
+     * eviction, so that committing transactions find most of their pages
+     * already on disk. Every page it writes is logged and the log forced
+     * first, so uncommitted changes written this way are undone by rollback
+     * and recovery.
+     *
+     * @param highWaterMark  the writer stays idle while the pool holds at
+     *                       most this many dirty pages
+     * @param pagesPerSecond the maximum number of pages written per second
+     */
+    public synchronized void startBackgroundWriter(int highWaterMark, int pagesPerSecond) {
+        setDirtyHighWaterMark(highWaterMark);
+        setFlushRate(pagesPerSecond);
+        if (dirtyPageWriter == null) {
+            dirtyPageWriter = new DirtyPageWriter();
+            dirtyPageWriter.start();
+        }
+    }
+
+    /**
+     * Stop the background writer, if it is running, and wait for it to exit.
+     */
+    public void stopBackgroundWriter() {
+        DirtyPageWriter writer;
+        synchronized (this) {
+            writer = dirtyPageWriter;
+            dirtyPageWriter = null;
+        }
+        if (writer == null)
+            return;
+        // no interrupt: it would close the file channels of a page write
+        writer.stopped.countDown();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the background threads of this pool, the dirty page writer and
+     * the page list writer, and wait for them to exit. Call this before
+     * replacing the pool, so that they do not keep writing its pages.
+     */
+    public void shutdown() {
+        stopBackgroundWriter();
+        stopPageListWriter();
+    }
+
+    public void setDirtyHighWaterMark(int highWaterMark) {
+        this.dirtyHighWaterMark = Math.max(0, highWaterMark);
+    }
+
+    public void setFlushRate(int pagesPerSecond) {
+        this.flushRate = Math.max(1, pagesPerSecond);
+    }
+
+    /**
+     * Set how many page locks a transaction may hold on one table before
+     * they are escalated to a table lock; 0 turns escalation off.
+     */
+    public void setLockEscalationThreshold(int pageLocks) {
+        lockManager.setEscalationThreshold(pageLocks);
+    }
+
+    /**
+     * @return whether a sequential scan over a table of the given number of
+     * pages of the given size should lock the whole table up front: it goes
+     * through a scan ring, see {@link #newScanRing(int, int)}, or takes
+     * enough page locks to be escalated anyway. Smaller scans lock page by
+     * page, so that they do not hold up writers of the rest of the table.
+     */
+    public boolean scanLocksTable(int tablePages, int tablePageSize) {
+        int threshold = lockManager.getEscalationThreshold();
+        return (threshold > 0 && tablePages >= threshold)
+                || (long) tablePages * tablePageSize > getMemoryBudget();
+    }
+
+    /**
+     * Write up to maxPages dirty pages to disk, as long as the pool holds
+     * more than the high-water mark of dirty pages. The pages are no longer
+     * dirty afterwards, but stay marked as written ahead until their
+     * transaction completes.
+     *
+     * @return the number of pages written
+     */
+    int writeAhead(int maxPages) throws IOException {
+        List<Page> images = new ArrayList<>();
+        // The pool monitor keeps LogFile rollback and checkpoints out, and the
+        // modification latch keeps insertTuple/deleteTuple out, while the
+        // pages are picked, copied and logged. Skip this round rather than
+        // wait if some transaction is modifying pages right now.
+        synchronized (this) {
+            if (!modificationLatch.writeLock().tryLock())
+                return 0;
+            try {
+                int excess = getNumDirtyPages() - dirtyHighWaterMark;
+                LogFile logFile = Database.getLogFile();
+                List<Page> pages = new ArrayList<>();
+                for (Partition partition : partitions) {
+                    for (Page page : partition.pageMap.values()) {
+                        if (pages.size() >= Math.min(excess, maxPages))
+                            break;
+                        // only changes the log can still roll back
+                        TransactionId dirtier = page.isDirty();
+                        AtomicInteger pins = partition.pinCounts.get(page.getId());
+                        // stealPage() writes out retired pages itself
+                        if (dirtier != null && logFile.isActive(dirtier) && pins != null && pins.get() >= 0)
+                            pages.add(page);
+                    }
+                }
+                if (pages.isEmpty())
+                    return 0;
+                for (Page page : pages) {
+                    TransactionId dirtier = page.isDirty();
+                    versions.preserve(page.getId(), page.getBeforeImage());
+                    logFile.logWrite(dirtier, page.getBeforeImage(), page);
+                    images.add(new PageImage(page));
+                    writtenAhead.put(page.getId(), dirtier);
+                    // the before image stays that of the last committed
+                    // version until the dirtying transaction completes
+                    page.markDirty(false, null);
+                }
+                logFile.force();
+            } finally {
+                modificationLatch.writeLock().unlock();
+            }
+            writeAheadIo.lock();
+        }
+        // The copies are written without the pool monitor, so getPage() and
+        // insertTuple() carry on meanwhile. Rollback and anyone else writing
+        // pages wait for the copies first, see awaitWriteAhead().
+        try {
+            for (Page image : images) {
+                long start = System.nanoTime();
+                Database.getCatalog().getDatabaseFile(image.getId().getTableId()).writePage(image);
+                metrics.flushLatency.record(System.nanoTime() - start);
+            }
+            metrics.pagesFlushed.add(images.size());
+        } finally {
+            writeAheadIo.unlock();
+        }
+        return images.size();
+    }
+
+    /**
+     * Wait until the pages the background writer is writing are on disk, so
+     * that the caller's own page writes, such as rollback's before images,
+     * cannot be overwritten by an older copy. A caller holding the pool
+     * monitor or the modification latch also keeps the next round from
+     * starting until it is done.
+     */
+    void awaitWriteAhead() {
+        writeAheadIo.lock();
+        writeAheadIo.unlock();
+    }
+
+    /**
+     * The contents of a page at the time it was copied, for the background
+     * writer to write out while the page itself changes.
+     */
+    private static class PageImage implements Page {
+        private final PageId pid;
+        private final byte[] data;
+        private final int pageSize;
+
+        PageImage(Page page) {
+            this.pid = page.getId();
+            this.data = page.getPageData();
+            this.pageSize = page.getPageSize();
+        }
+
+        public PageId getId() {
+            return pid;
+        }
+
+        public TransactionId isDirty() {
+            return null;
+        }
+
+        public void markDirty(boolean dirty, TransactionId tid) {
+            throw new UnsupportedOperationException();
+        }
+
+        public byte[] getPageData() {
+            return data;
+        }
+
+        public Page getBeforeImage() {
+            throw new UnsupportedOperationException();
+        }
+
+        public void setBeforeImage() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getPageSize() {
+            return pageSize;
+        }
+    }
+
+    /**
+     * Trickles dirty pages to disk at no more than the configured flush rate.
+     */
+    private class DirtyPageWriter extends Thread {
+        private static final int TICKS_PER_SECOND = 10;
+        private final CountDownLatch stopped = new CountDownLatch(1);
+
+        DirtyPageWriter() {
+            super("BufferPool dirty page writer");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                do {
+                    try {
+                        writeAhead(Math.max(1, flushRate / TICKS_PER_SECOND));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                } while (!stopped.await(1000 / TICKS_PER_SECOND, TimeUnit.MILLISECONDS));
+            } catch (InterruptedException e) {
+                // stop
+            }
+        }
+    }
+
+    /**
+     * Save the ids of the resident pages to the given file whenever
+     * {@link #savePageList()} is called -- LogFile.shutdown() does -- and
+     * every saveIntervalMillis milliseconds in the background, so that a
+     * restarted database can reload them with {@link #warmUp()}.
+     *
+     * @param file               the page list file
+     * @param saveIntervalMillis how often to save the list, or 0 to save it
+     *                           on shutdown only
+     */
+    public synchronized void enablePageList(File file, long saveIntervalMillis) {
+        this.pageListFile = file;
+        stopPageListWriter();
+        if (saveIntervalMillis > 0) {
+            pageListWriter = new PageListWriter(saveIntervalMillis);
+            pageListWriter.start();
+        }
+    }
+
+    /**
+     * Stop saving the page list periodically, if it is, and wait for the
+     * writer to exit.
+     */
+    public void stopPageListWriter() {
+        PageListWriter writer;
+        synchronized (this) {
+            writer = pageListWriter;
+            pageListWriter = null;
+        }
+        if (writer == null)
+            return;
+        writer.interrupt();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Write the ids of the resident pages to the page list file, if one was
+     * set with {@link #enablePageList}. The list is written to a temporary
+     * file first and then renamed, so a crash never leaves a torn list.
+     */
+    public void savePageList() throws IOException {
+        File file = pageListFile;
+        if (file == null)
+            return;
+        List<PageId> pids = new ArrayList<>();
+        for (Partition partition : partitions)
+            pids.addAll(partition.pageMap.keySet());
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(pids.size());
+            for (PageId pid : pids) {
+                int[] data = pid.serialize();
+                out.writeUTF(pid.getClass().getName());
+                out.writeInt(data.length);
+                for (int i : data)
+                    out.writeInt(i);
+            }
+        }
+        java.nio.file.Files.move(tmp.toPath(), file.toPath(),
+                java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reload the pages listed in the page list file in a background thread,
+     * in file order so that the reads are mostly sequential. Call this once
+     * the catalog is loaded: pages of unknown tables are skipped. Warm-up
+     * only fills free frames and never evicts a page, so it cannot push out
+     * pages that live traffic brought in meanwhile.
+     *
+     * @return the warm-up thread, or null if there is no page list to load
+     */
+    public Thread warmUp() {
+        File file = pageListFile;
+        if (file == null || !file.exists())
+            return null;
+        Thread thread = new Thread(() -> {
+            try {
+                List<PageId> pids = readPageList(file);
+                pids.sort(Comparator.comparingInt(PageId::getTableId)
+                        .thenComparingInt(PageId::getPageNumber));
+                for (PageId pid : pids) {
+                    if (getResidentBytes() >= getMemoryBudget())
+                        break;
+                    stagePage(pid);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "BufferPool warm-up");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static List<PageId> readPageList(File file) throws IOException {
+        List<PageId> pids = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String className = in.readUTF();
+                Object[] args = new Object[in.readInt()];
+                for (int j = 0; j < args.length; j++)
+                    args[j] = in.readInt();
+                try {
+                    for (Constructor<?> constructor : Class.forName(className).getDeclaredConstructors()) {
+                        if (constructor.getParameterCount() == args.length) {
+                            pids.add((PageId) constructor.newInstance(args));
+                            break;
+                        }
+                    }
+                } catch (ReflectiveOperationException | IllegalArgumentException e) {
+                    throw new IOException("bad page id in " + file + ": " + e.getMessage());
+                }
+            }
+        }
+        return pids;
+    }
+
+    /**
+     * Read a page and make it resident, unless it is already, or there is no
+     * free frame in its partition. No lock is taken, so like read-ahead the
+     * page is dropped if its partition gave up any page during the read.
+     */
+    private void stagePage(PageId pid) {
+        Partition partition = partitionOf(pid);
+        DbFile dbFile;
+        try {
+            dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            return; // the table is gone
+        }
+        long removalsBefore;
+        synchronized (partition) {
+            if (partition.pageMap.containsKey(pid) || !partition.hasRoom(dbFile.getPageSize())
+                    || overQuota(partition, pid.getTableId(), dbFile.getPageSize()))
+                return;
+            removalsBefore = partition.removals;
+        }
+        Page page;
+        try {
+            // HeapFile.readPage() would extend the file
+            if (dbFile instanceof HeapFile && pid.getPageNumber() >= ((HeapFile) dbFile).numPages())
+                return;
+            page = dbFile.readPage(pid);
+        } catch (NoSuchElementException | IllegalArgumentException e) {
+            return; // the table is gone, or the page is past its end
+        }
+        if (page == null)
+            return;
+        synchronized (partition) {
+            if (partition.removals != removalsBefore || partition.pageMap.containsKey(pid)
+                    || !partition.hasRoom(page.getPageSize())
+                    || overQuota(partition, pid.getTableId(), page.getPageSize()))
+                return;
+            partition.pageMap.put(pid, page);
+            partition.charge(page);
+            partition.pinCounts.put(pid, new AtomicInteger(0));
+            partition.replacementPolicy.recordInsert(pid);
+        }
+    }
+
+    /**
+     * Saves the page list at a fixed interval.
+     */
+    private class PageListWriter extends Thread {
+        private final long intervalMillis;
+
+        PageListWriter(long intervalMillis) {
+            super("BufferPool page list writer");
+            this.intervalMillis = intervalMillis;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
                 try {
-                    flushPage(pageId);
+                    Thread.sleep(intervalMillis);
+                    savePageList();
+                } catch (InterruptedException e) {
+                    return;
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
             }
-        });
+        }
+    }
+
+    /**
+     * Evict clean pages of the given partition until the given page fits.
+     * If its table is over its quota, the table's own pages go first. Must
+     * be called with the partition latch held.
+     *
+     * @return EVICTED once the page fits, otherwise the outcome of the
+     * eviction that failed, see evictPage()
+     */
+    private Eviction makeRoom(Partition partition, PageId pid, int pageSize) {
+        int tableId = pid.getTableId();
+        Eviction eviction = Eviction.EVICTED;
+        // quotas are soft: if none of the table's pages can go, carry on
+        while (overQuota(partition, tableId, pageSize) && eviction == Eviction.EVICTED)
+            eviction = evictPage(partition, p -> p.getTableId() == tableId);
+        eviction = Eviction.EVICTED;
+        while (!partition.hasRoom(pageSize) && eviction == Eviction.EVICTED)
+            eviction = evictPage(partition);
+        return eviction;
+    }
+
+    /**
+     * @return whether the given table would hold more than its share of its
+     * quota in the given partition after adding pageSize bytes. Each
+     * partition enforces an equal share of the quota. Must be called with
+     * the partition latch held.
+     */
+    private boolean overQuota(Partition partition, int tableId, int pageSize) {
+        Catalog catalog = Database.getCatalog();
+        if (!catalog.hasCachePolicies())
+            return false;
+        long quota;
+        try {
+            quota = catalog.getQuotaBytes(tableId);
+        } catch (NoSuchElementException e) {
+            return false;
+        }
+        if (quota == 0)
+            return false;
+        long share = (quota + partitions.length - 1) / partitions.length;
+        return partition.bytesOf(tableId) + pageSize > share;
     }
 
     /**
-     * Discards a page from the buffer pool.
+     * @return the eviction rank of a page that becomes resident: the ordinal
+     * of its priority class. B+ tree inner nodes count as HIGH priority, and
+     * pages of tables no longer in the catalog as LOW.
+     */
+    private static int evictionRank(PageId pid) {
+        Catalog catalog = Database.getCatalog();
+        CachePriority priority;
+        if (!catalog.hasCachePolicies()) {
+            priority = CachePriority.NORMAL;
+        } else if (pid.isInnerNode()) {
+            priority = CachePriority.HIGH;
+        } else {
+            try {
+                priority = catalog.getCachePriority(pid.getTableId());
+            } catch (NoSuchElementException e) {
+                priority = CachePriority.LOW;
+            }
+        }
+        return priority.ordinal();
+    }
+
+    /**
+     * Evict one clean page of the given partition, honouring the cache
+     * policies of the catalog: pages of tables over their quota go first,
+     * then the replacement policy of each partition picks from the lowest
+     * priority class that has an evictable page, see evictionRank(). Must be
+     * called with the partition latch held.
+     *
+     * @see Catalog#setCachePolicy
+     * @see PriorityReplacementPolicy
+     */
+    private Eviction evictPage(Partition partition) {
+        if (Database.getCatalog().hasCachePolicies()) {
+            Set<Integer> overQuota = new HashSet<>();
+            for (int tableId : partition.tableBytes.keySet())
+                if (overQuota(partition, tableId, 0))
+                    overQuota.add(tableId);
+            if (!overQuota.isEmpty()
+                    && evictPage(partition, pid -> overQuota.contains(pid.getTableId())) == Eviction.EVICTED)
+                return Eviction.EVICTED;
+        }
+        return evictPage(partition, pid -> true);
+    }
+
+    /**
+     * Discards a page from the given partition of the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Must be called with the partition latch held.
+     *
+     * @return PINNED if no page could be evicted because the clean ones are
+     * all pinned: the caller may then exceed the partition's share of frames
+     * by one page until the pins are released. DIRTY if every page is dirty:
+     * the caller has to steal one, see stealPage().
+     *
+     * @param candidates the pages that may be chosen
      */
-    private synchronized void evictPage() throws DbException {
+    private Eviction evictPage(Partition partition, Predicate<PageId> candidates) {
         // some code goes here
         // not necessary for lab1
-        // Evict the pages that are Least Recently Used first. Note that we choose to evict those pages
-        // that are not dirty, so that a flush operation is not needed.
-//        Iterator<Page> iterator = lruCache.reverseIterator();
-//        while (iterator.hasNext()) {
-//            Page next = iterator.next();
-//            if (next.isDirty() == null) {
-//                discardPage(next.getId());
-//                return;
-//            }
-//        }
-//        throw new DbException("All the pages are dirty in BufferPool!");
-        if (pageMap.size() < numPages) { // pageMap未满,不作处理
-            return;
-        }
-        boolean evicted = false;
-        Iterator<Map.Entry<PageId, Page>> iterator = pageMap.entrySet().iterator();
-        while (iterator.hasNext()) {
-            Map.Entry<PageId, Page> next = iterator.next();
-            if (next.getValue().isDirty() == null) { // Evict a page that is not dirty
-                iterator.remove();
-                evicted = true;
-            }
+        // Ask the replacement policy for exactly one clean, unpinned victim.
+        // Dirty pages are only given up by stealPage(), outside the latch,
+        // because they have to be logged and written first. So are pages
+        // written ahead, which the log may still have to roll back.
+        boolean[] pinned = {false};
+        PageId victim = partition.replacementPolicy.evict(pid -> {
+            Page page = partition.pageMap.get(pid);
+            if (page == null)
+                return true;
+            if (page.isDirty() != null || writtenAhead.containsKey(pid) || !candidates.test(pid))
+                return false;
+            if (tryRetire(partition, pid))
+                return true;
+            pinned[0] = true;
+            return false;
+        });
+        if (victim == null)
+            return pinned[0] ? Eviction.PINNED : Eviction.DIRTY;
+        partition.pinCounts.remove(victim);
+        Page page = partition.pageMap.remove(victim);
+        partition.removals++;
+        metrics.evictions.increment();
+        if (page != null) {
+            partition.refund(page);
+            releaseFrame(partition, victim, page);
         }
-        if (!evicted)
-            throw new DbException("evict Fail");
+        return Eviction.EVICTED;
     }
 }
-
@@ -0,0 +1,112 @@
+package simpledb.storage;
+
+import simpledb.common.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BufferPoolMetrics counts what one BufferPool does: hits, misses,
+ * evictions, steals and page writes, together with the latency of misses
+ * and of writes. Counters are striped LongAdders, so the hit path of
+ * getPage() adds one uncontended increment and no clock read.
+ *
+ * @Threadsafe
+ */
+public class BufferPoolMetrics implements BufferPoolMetricsMXBean {
+
+    private final BufferPool bufferPool;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder steals = new LongAdder();
+    final LongAdder pagesFlushed = new LongAdder();
+    final LatencyHistogram missLatency = new LatencyHistogram();
+    final LatencyHistogram flushLatency = new LatencyHistogram();
+
+    BufferPoolMetrics(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hits = this.hits.sum();
+        long total = hits + misses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getSteals() {
+        return steals.sum();
+    }
+
+    @Override
+    public long getPagesFlushed() {
+        return pagesFlushed.sum();
+    }
+
+    @Override
+    public double getMissLatencyMeanMicros() {
+        return missLatency.getMeanMicros();
+    }
+
+    @Override
+    public double getMissLatencyP99Micros() {
+        return missLatency.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public double getFlushLatencyMeanMicros() {
+        return flushLatency.getMeanMicros();
+    }
+
+    @Override
+    public double getFlushLatencyP99Micros() {
+        return flushLatency.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public double getFlushLatencyMaxMicros() {
+        return flushLatency.getMaxMicros();
+    }
+
+    @Override
+    public int getCapacity() {
+        return bufferPool.getNumPages();
+    }
+
+    @Override
+    public long getMemoryBudget() {
+        return bufferPool.getMemoryBudget();
+    }
+
+    @Override
+    public long getResidentBytes() {
+        return bufferPool.getResidentBytes();
+    }
+
+    @Override
+    public int getResidentPages() {
+        return bufferPool.getNumResidentPages();
+    }
+
+    @Override
+    public int getDirtyPages() {
+        return bufferPool.getNumDirtyPages();
+    }
+}
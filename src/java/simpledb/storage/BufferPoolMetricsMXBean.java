@@ -0,0 +1,76 @@
+package simpledb.storage;
+
+/**
+ * Management interface of {@link BufferPoolMetrics}. The Database registers
+ * the metrics of its buffer pool with the platform MBean server under the
+ * name {@code simpledb:type=BufferPool}, so they can be read with jconsole or
+ * any other JMX client. Counters cover the lifetime of the pool; latencies
+ * are in microseconds.
+ */
+public interface BufferPoolMetricsMXBean {
+
+    /**
+     * @return the number of getPage() calls served from the pool
+     */
+    long getHits();
+
+    /**
+     * @return the number of getPage() calls that had to read the page
+     */
+    long getMisses();
+
+    /**
+     * @return hits / (hits + misses), or 0 before the first getPage()
+     */
+    double getHitRatio();
+
+    /**
+     * @return the number of clean pages evicted to make room
+     */
+    long getEvictions();
+
+    /**
+     * @return the number of dirty pages written out early to make room
+     */
+    long getSteals();
+
+    /**
+     * @return the number of pages written to disk
+     */
+    long getPagesFlushed();
+
+    double getMissLatencyMeanMicros();
+
+    double getMissLatencyP99Micros();
+
+    double getFlushLatencyMeanMicros();
+
+    double getFlushLatencyP99Micros();
+
+    double getFlushLatencyMaxMicros();
+
+    /**
+     * @return the number of default-size pages the pool may hold
+     */
+    int getCapacity();
+
+    /**
+     * @return the number of bytes of pages the pool may hold
+     */
+    long getMemoryBudget();
+
+    /**
+     * @return the number of bytes of pages currently in the pool
+     */
+    long getResidentBytes();
+
+    /**
+     * @return the number of pages currently in the pool
+     */
+    int getResidentPages();
+
+    /**
+     * @return the number of dirty pages currently in the pool
+     */
+    int getDirtyPages();
+}
@@ -0,0 +1,112 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Every resident page owns one slot of a
+ * circular array together with a reference bit. A hit only sets the bit, and
+ * the eviction hand sweeps the ring, clearing set bits and stopping at the
+ * first evictable page whose bit is already clear. Victim selection is
+ * amortized O(1): each sweep step either clears a bit set by an earlier hit
+ * or skips a page the caller refused to evict.
+ * <p>
+ * recordAccess() takes no lock, so BufferPool hits never wait for an
+ * eviction sweep.
+ */
+public class ClockReplacementPolicy implements ReplacementPolicy {
+
+    private static class Slot {
+        private final int index;
+        private final PageId pid;
+        private volatile boolean referenced;
+
+        Slot(int index, PageId pid) {
+            this.index = index;
+            this.pid = pid;
+            this.referenced = true;
+        }
+    }
+
+    private final List<Slot> ring;
+    private final Map<PageId, Slot> slotOf;
+    private final Deque<Integer> freeSlots;
+    private int hand;
+
+    /**
+     * @param capacity the expected number of resident pages. The ring grows if
+     *                 the BufferPool briefly holds more pages than that.
+     */
+    public ClockReplacementPolicy(int capacity) {
+        this.ring = new ArrayList<>(capacity);
+        this.slotOf = new ConcurrentHashMap<>();
+        this.freeSlots = new ArrayDeque<>();
+        this.hand = 0;
+    }
+
+    @Override
+    public synchronized void recordInsert(PageId pid) {
+        Slot slot = slotOf.get(pid);
+        if (slot != null) {
+            slot.referenced = true;
+            return;
+        }
+        Integer index = freeSlots.poll();
+        if (index == null) {
+            slot = new Slot(ring.size(), pid);
+            ring.add(slot);
+        } else {
+            slot = new Slot(index, pid);
+            ring.set(index, slot);
+        }
+        slotOf.put(pid, slot);
+    }
+
+    @Override
+    public void recordAccess(PageId pid) {
+        Slot slot = slotOf.get(pid);
+        if (slot != null)
+            slot.referenced = true;
+    }
+
+    @Override
+    public synchronized void remove(PageId pid) {
+        Slot slot = slotOf.remove(pid);
+        if (slot != null) {
+            ring.set(slot.index, null);
+            freeSlots.push(slot.index);
+        }
+    }
+
+    @Override
+    public synchronized PageId evict(Predicate<PageId> evictable) {
+        // Two full turns are enough: the first one clears every reference bit,
+        // the second one is guaranteed to find any evictable page.
+        int ringSize = ring.size();
+        for (int steps = 0; steps < 2 * ringSize; steps++) {
+            Slot slot = ring.get(hand);
+            hand = (hand + 1) % ringSize;
+            if (slot == null)
+                continue;
+            if (slot.referenced) {
+                slot.referenced = false;
+                continue;
+            }
+            if (evictable.test(slot.pid)) {
+                remove(slot.pid);
+                return slot.pid;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return slotOf.size();
+    }
+}
@@ -93,4 +93,13 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     TupleDesc getTupleDesc();
+
+    /**
+     * Returns the size in bytes of the pages of this DbFile. Files may use
+     * different page sizes; the default is {@link BufferPool#getPageSize()}.
+     * @return the page size of this DbFile.
+     */
+    default int getPageSize() {
+        return BufferPool.getPageSize();
+    }
 }
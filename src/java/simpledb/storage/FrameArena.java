@@ -0,0 +1,86 @@
+package simpledb.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * FrameArena is a preallocated pool of page-sized frames living outside the
+ * Java heap, in direct ByteBuffers. The BufferPool reads pages straight into
+ * these frames, and frame-backed pages decode their tuples from the frame on
+ * demand, so caching many pages does not grow the heap the GC has to scan.
+ * <p>
+ * A single direct ByteBuffer cannot exceed 2 GB, so the arena is made of as
+ * many chunks as needed.
+ *
+ * @Threadsafe
+ */
+public class FrameArena {
+
+    private final int frameSize;
+    private final int framesPerChunk;
+    private final ByteBuffer[] chunks;
+    private final Deque<Integer> freeFrames;
+
+    /**
+     * @param numFrames number of frames to preallocate
+     * @param frameSize size of each frame in bytes, i.e. the page size
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        this.frameSize = frameSize;
+        this.framesPerChunk = Integer.MAX_VALUE / frameSize;
+        int numChunks = (numFrames + framesPerChunk - 1) / framesPerChunk;
+        this.chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            int frames = Math.min(framesPerChunk, numFrames - i * framesPerChunk);
+            chunks[i] = ByteBuffer.allocateDirect(frames * frameSize);
+        }
+        this.freeFrames = new ArrayDeque<>(numFrames);
+        for (int i = 0; i < numFrames; i++)
+            freeFrames.add(i);
+    }
+
+    /**
+     * @return the size of each frame in bytes
+     */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /**
+     * Take a free frame out of the arena.
+     *
+     * @return the number of the frame, or -1 if every frame is in use
+     */
+    public synchronized int acquire() {
+        Integer frame = freeFrames.poll();
+        return frame == null ? -1 : frame;
+    }
+
+    /**
+     * Give a frame back to the arena. The caller must make sure nobody reads
+     * through an old view of the frame afterwards.
+     */
+    public synchronized void release(int frame) {
+        freeFrames.push(frame);
+    }
+
+    /**
+     * @return a ByteBuffer covering exactly the given frame, with position 0
+     * and limit frameSize. Views share their content with the arena.
+     */
+    public ByteBuffer view(int frame) {
+        ByteBuffer chunk = chunks[frame / framesPerChunk].duplicate();
+        int offset = (frame % framesPerChunk) * frameSize;
+        chunk.position(offset);
+        chunk.limit(offset + frameSize);
+        return chunk.slice();
+    }
+
+    /**
+     * @return the number of frames not currently in use
+     */
+    public synchronized int freeFrames() {
+        return freeFrames.size();
+    }
+}
@@ -4,12 +4,18 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
+import simpledb.transaction.LockMode;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 import simpledb.utils.HeapFileIterator;
 
 import java.io.*;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -25,7 +31,30 @@ public class HeapFile implements DbFile {
 
     private final File f;
     private final TupleDesc td;
-    private RandomAccessFile randomAccessFile;
+    private final int pageSize;
+    private PageChannel channel;
+    /**
+     * Free-space map: the pages that may have an empty slot. It is only a hint, kept in memory:
+     * a page is checked before a tuple goes onto it, and every page counts as having room until
+     * an insert finds it full. Guarded by itself.
+     */
+    private final BitSet pagesWithRoom = new BitSet();
+    private int mappedPages; // the pages covered by pagesWithRoom, guarded by pagesWithRoom
+
+    /**
+     * The file is mapped in chunks of at most this many bytes, each holding
+     * whole pages, because a single MappedByteBuffer cannot exceed 2 GB.
+     */
+    static final int MAP_CHUNK_BYTES = 1 << 30;
+    private volatile boolean memoryMapped;
+    private final Map<Long, MappedByteBuffer> mappedChunks = new ConcurrentHashMap<>(); // by file offset
+    /**
+     * The pages handed out as views of the mapping, by page number. The
+     * mapping sees every write to the file, so a view is copied to the heap
+     * before its page is overwritten. Guarded by itself, which writePage()
+     * holds while it writes in memory-mapped mode.
+     */
+    private final Map<Integer, List<WeakReference<HeapPage>>> mappedViews = new HashMap<>();
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -34,14 +63,30 @@ public class HeapFile implements DbFile {
      *          file.
      */
     public HeapFile(File f, TupleDesc td) {
+        this(f, td, 0);
+    }
+
+    /**
+     * Constructs a heap file backed by the specified file, whose pages are
+     * pageSize bytes long.
+     *
+     * @param f        the file that stores the on-disk backing store for this
+     *                 heap file.
+     * @param pageSize the page size of this file in bytes, or 0 to use
+     *                 {@link BufferPool#getPageSize()}
+     */
+    public HeapFile(File f, TupleDesc td, int pageSize) {
         // some code goes here
 //        System.out.println("HeapFile Initialization!");
 //        System.out.println("File path = " + f);
+        if (pageSize < 0)
+            throw new IllegalArgumentException("negative page size " + pageSize);
         this.f = f;
         this.td = td;
+        this.pageSize = pageSize;
         try {
-            this.randomAccessFile = new RandomAccessFile(f, "rw");
-        } catch (FileNotFoundException e) {
+            this.channel = new PageChannel(f, getPageSize());
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
@@ -81,15 +126,54 @@ public class HeapFile implements DbFile {
     }
 
     // see DbFile.java for javadocs
+    @Override
+    public int getPageSize() {
+        return pageSize == 0 ? BufferPool.getPageSize() : pageSize;
+    }
+
+    /**
+     * Turn the memory-mapped read path on or off. While it is on, readPage()
+     * returns pages that decode their tuples straight from a read-only
+     * mapping of the file, without a system call or a copy per page. Meant
+     * for large tables that are mostly read; every write to a mapped page
+     * first copies the views of that page handed out earlier.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+        synchronized (mappedViews) {
+            this.memoryMapped = memoryMapped;
+            if (!memoryMapped) {
+                for (Integer pgNo : new ArrayList<>(mappedViews.keySet()))
+                    detachMappedViews(pgNo);
+                mappedChunks.clear();
+            }
+        }
+    }
+
+    /**
+     * @return true if pages are read through a memory mapping of the file
+     */
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+
+    // see DbFile.java for javadocs
+    // Not synchronized: positional reads do not share a file pointer, so the
+    // BufferPool partitions read pages of this file in parallel.
     public Page readPage(PageId pid) {
         // some code goes here
         // Here we calculate the "offset" of the given page specified by pid. Then by using
-        // randomAccessFile, we can read the correct page from the file.
-        int offset = pid.getPageNumber() * BufferPool.getPageSize();
+        // the channel, we can read the correct page from the file.
+        int pageSize = getPageSize();
+        long offset = (long) pid.getPageNumber() * pageSize;
         try {
-            randomAccessFile.seek(offset);
-            byte[] buffer = new byte[BufferPool.getPageSize()];
-            if (randomAccessFile.read(buffer) != -1) {
+            if (memoryMapped) {
+                HeapPage page = readMappedPage((HeapPageId) pid);
+                if (page != null)
+                    return page;
+                // past the end of the file
+            }
+            byte[] buffer = new byte[pageSize];
+            if (channel.read(offset, buffer) > 0) {
                 return new HeapPage((HeapPageId) pid, buffer);
             } else {
                 HeapPage page = new HeapPage((HeapPageId) pid, buffer);
@@ -103,14 +187,130 @@ public class HeapFile implements DbFile {
         return null;
     }
 
+    /**
+     * @return a page that is a view of the mapping of the file, or null if
+     * the page lies past the end of the file
+     */
+    private HeapPage readMappedPage(HeapPageId pid) throws IOException {
+        int pageSize = getPageSize();
+        int pagesPerChunk = MAP_CHUNK_BYTES / pageSize;
+        long chunkStart = (long) (pid.getPageNumber() / pagesPerChunk) * pagesPerChunk * pageSize;
+        int offset = (pid.getPageNumber() % pagesPerChunk) * pageSize;
+        synchronized (mappedViews) {
+            if (!memoryMapped)
+                return null;
+            MappedByteBuffer chunk = mappedChunks.get(chunkStart);
+            if (chunk == null || chunk.capacity() < offset + pageSize) {
+                // not mapped yet, or the file grew since the chunk was mapped
+                long length = Math.min(pagesPerChunk, (channel.size() - chunkStart) / pageSize) * pageSize;
+                if (length < offset + pageSize)
+                    return null;
+                chunk = channel.map(chunkStart, (int) length);
+                mappedChunks.put(chunkStart, chunk);
+            }
+            ByteBuffer view = chunk.duplicate();
+            view.position(offset);
+            view.limit(offset + pageSize);
+            HeapPage page = new HeapPage(pid, view.slice());
+            List<WeakReference<HeapPage>> views =
+                    mappedViews.computeIfAbsent(pid.getPageNumber(), pgNo -> new ArrayList<>());
+            views.removeIf(ref -> ref.get() == null);
+            views.add(new WeakReference<>(page));
+            return page;
+        }
+    }
+
+    /**
+     * Copy the views of a page handed out by readMappedPage() to the heap,
+     * so that they keep their contents when the page is overwritten.
+     */
+    private void detachMappedViews(int pgNo) {
+        List<WeakReference<HeapPage>> views = mappedViews.remove(pgNo);
+        if (views == null)
+            return;
+        for (WeakReference<HeapPage> ref : views) {
+            HeapPage page = ref.get();
+            if (page != null)
+                page.detachFrame();
+        }
+    }
+
+    /**
+     * Read the specified page straight into a BufferPool frame, without
+     * going through a heap byte array, and return a HeapPage that decodes its
+     * tuples from that frame.
+     *
+     * @param pid   the page to read
+     * @param frame the frame to fill, exactly one page long
+     * @see FrameArena
+     */
+    HeapPage readPage(HeapPageId pid, ByteBuffer frame) throws IOException {
+        long offset = (long) pid.getPageNumber() * getPageSize();
+        ByteBuffer dst = frame.duplicate();
+        dst.clear();
+        boolean pastEnd = channel.read(offset, dst) == 0;
+        // zero-fill anything beyond the end of the file
+        while (dst.hasRemaining())
+            dst.put((byte) 0);
+        HeapPage page = new HeapPage(pid, frame);
+        if (pastEnd)
+            this.writePage(page);
+        return page;
+    }
+
+    /**
+     * @return true if {@link #readPages} may stand in for {@link #readPage}.
+     * The bulk read does not go through readPage(), so it is turned off for
+     * subclasses that override readPage() to observe or change page reads.
+     */
+    public boolean supportsReadAhead() {
+        // mapped pages cost no I/O to read one at a time
+        if (memoryMapped)
+            return false;
+        try {
+            return getClass().getMethod("readPage", PageId.class).getDeclaringClass() == HeapFile.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Read a run of consecutive pages with a single large read. Used for
+     * sequential read-ahead; pages past the end of the file are not returned.
+     *
+     * @param firstPgNo the number of the first page to read
+     * @param count     the maximum number of pages to read
+     * @return the pages that were read, in page number order
+     */
+    public List<HeapPage> readPages(int firstPgNo, int count) throws IOException {
+        int pageSize = getPageSize();
+        count = Math.max(0, Math.min(count, numPages() - firstPgNo));
+        List<HeapPage> pages = new ArrayList<>(count);
+        if (count == 0)
+            return pages;
+        byte[] buffer = new byte[count * pageSize];
+        count = channel.read((long) firstPgNo * pageSize, buffer) / pageSize;
+        for (int i = 0; i < count; i++) {
+            byte[] data = Arrays.copyOfRange(buffer, i * pageSize, (i + 1) * pageSize);
+            pages.add(new HeapPage(new HeapPageId(getId(), firstPgNo + i), data));
+        }
+        return pages;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
-        int offset = BufferPool.getPageSize() * page.getId().getPageNumber();
-        randomAccessFile.seek(offset);
-        byte[] pageData = page.getPageData();
-        randomAccessFile.write(pageData);
+        long offset = (long) getPageSize() * page.getId().getPageNumber();
+        byte[] data = page.getPageData();
+        if (memoryMapped) {
+            synchronized (mappedViews) {
+                detachMappedViews(page.getId().getPageNumber());
+                channel.write(offset, data);
+            }
+            return;
+        }
+        channel.write(offset, data);
     }
 
     /**
@@ -118,7 +318,7 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        return (int) (f.length() / BufferPool.getPageSize());
+        return (int) (f.length() / getPageSize());
     }
 
     // see DbFile.java for javadocs
@@ -131,31 +331,95 @@ public class HeapFile implements DbFile {
         // To insert a tuple into a HeapFile, we first iterate through all the pages the heapFile
         // contains; Then we call the insertTuple() of class "HeapPage" if there are empty slots
         // remaining; Also remember to call markDirty() to store the TransactionId.
+        // Pages other writers hold are passed over rather than waited for, so concurrent inserts
+        // spread over the pages with room (or new ones) instead of queueing on the same page.
+        // The free-space map leads straight to the pages that may have room.
+        BufferPool bufferPool = Database.getBufferPool();
+        bufferPool.lockTable(tid, getId(), LockMode.IX);
         List<Page> modifyList = new ArrayList<>();
-        for (int i = 0; i < numPages(); i++) {
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, new HeapPageId(getId(), i),
-                    Permissions.READ_WRITE);
-            if (page != null && page.getNumEmptySlots() > 0) {
+        for (int i = nextPageWithRoom(0); i >= 0; i = nextPageWithRoom(i + 1)) {
+            HeapPageId pid = new HeapPageId(getId(), i);
+            boolean locked = bufferPool.holdsLock(tid, pid);
+            HeapPage page = (HeapPage) bufferPool.tryGetPage(tid, pid, Permissions.READ_WRITE);
+            if (page == null)
+                continue;
+            if (page.hasRoomFor(t)) {
                 page.insertTuple(t);
                 page.markDirty(true, tid);
                 modifyList.add(page);
+                if (page.getNumEmptySlots() == 0)
+                    setHasRoom(i, false);
                 break;
             }
+            // a slotted page may be too full for this tuple but not for a smaller one
+            if (page.getNumEmptySlots() == 0)
+                setHasRoom(i, false);
+            // a full page is not needed any more, let it be evicted
+            bufferPool.unpinPage(tid, pid);
+            // nor its lock, if it was only taken to look for room. This does not break strict 2PL:
+            // the transaction neither changed the page nor read any of its tuples, only whether
+            // it has room, and any other page with room would have done as well.
+            if (!locked)
+                bufferPool.unsafeReleasePage(tid, pid);
         }
-        if (modifyList.size() == 0) {
+        while (modifyList.size() == 0) {
             // This indicates that all pages remaining are full. Therefore, a new page should be created.
-            HeapPageId heapPageId = new HeapPageId(getId(), numPages());
-            // Fantastic! The class HeapPage provides the method createEmptyPageData().
-            HeapPage heapPage = new HeapPage(heapPageId, HeapPage.createEmptyPageData());
-            writePage(heapPage);
-            heapPage = (HeapPage) Database.getBufferPool().getPage(tid, heapPageId, Permissions.READ_WRITE);
-            heapPage.insertTuple(t);
-            heapPage.markDirty(true, tid);
-            modifyList.add(heapPage);
+            HeapPageId heapPageId;
+            synchronized (this) {
+                // concurrent inserters each append a page of their own
+                heapPageId = new HeapPageId(getId(), numPages());
+                // Fantastic! The class HeapPage provides the method createEmptyPageData().
+                writePage(new HeapPage(heapPageId, HeapPage.createEmptyPageData(getPageSize())));
+            }
+            // until it is locked, another inserter may find the new page through the free-space
+            // map and fill it; then append another one. A tuple too large for an empty page is
+            // refused by HeapPage.insertTuple().
+            HeapPage heapPage = (HeapPage) bufferPool.getPage(tid, heapPageId, Permissions.READ_WRITE);
+            if (heapPage.hasRoomFor(t) || !heapPage.iterator().hasNext()) {
+                heapPage.insertTuple(t);
+                heapPage.markDirty(true, tid);
+                modifyList.add(heapPage);
+            } else {
+                // only probed for room, like a full page above
+                bufferPool.unpinPage(tid, heapPageId);
+                bufferPool.unsafeReleasePage(tid, heapPageId);
+            }
+            setHasRoom(heapPageId.getPageNumber(), heapPage.getNumEmptySlots() > 0);
         }
         return modifyList;
     }
 
+    /**
+     * @return the first page from the given one on that may have an empty slot, or -1
+     */
+    private int nextPageWithRoom(int fromPgNo) {
+        int numPages = numPages();
+        synchronized (pagesWithRoom) {
+            // pages appended since the map was last looked at count as having room
+            if (numPages > mappedPages) {
+                pagesWithRoom.set(mappedPages, numPages);
+                mappedPages = numPages;
+            }
+            int pgNo = pagesWithRoom.nextSetBit(fromPgNo);
+            return pgNo < numPages ? pgNo : -1;
+        }
+    }
+
+    /**
+     * Called when a transaction that wrote the given page aborts. Its inserts
+     * are undone, so the page may have room again even though they filled it.
+     */
+    void rolledBack(PageId pid) {
+        setHasRoom(pid.getPageNumber(), true);
+    }
+
+    private void setHasRoom(int pgNo, boolean hasRoom) {
+        synchronized (pagesWithRoom) {
+            pagesWithRoom.set(pgNo, hasRoom);
+            mappedPages = Math.max(mappedPages, pgNo + 1);
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException {
@@ -169,6 +433,7 @@ public class HeapFile implements DbFile {
             page.deleteTuple(t);
             page.markDirty(true, tid);
             pageList.add(page);
+            setHasRoom(recordId.getPageId().getPageNumber(), true);
         }
         return pageList;
     }
@@ -180,5 +445,14 @@ public class HeapFile implements DbFile {
         return new HeapFileIterator(tid, this);
     }
 
+    /**
+     * @return an iterator over the tuples of this file that pass the given
+     * predicate, which is evaluated on the stored bytes of its field before
+     * a tuple is decoded
+     */
+    public DbFileIterator iterator(TransactionId tid, Predicate p) {
+        return new HeapFileIterator(tid, this, p);
+    }
+
 }
 
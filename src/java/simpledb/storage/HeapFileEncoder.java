@@ -4,8 +4,10 @@ import simpledb.common.Type;
 import simpledb.common.Utility;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Pattern;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -78,7 +80,7 @@ public class HeapFileEncoder {
     * where each row represents a tuple.<br>
     * <p>
     * The format of the output file will be as specified in HeapPage and
-    * HeapFile.
+    * HeapFile. Tuples with a variable-length field go on slotted pages.
     *
     * @see HeapPage
     * @see HeapFile
@@ -93,6 +95,13 @@ public class HeapFileEncoder {
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
 
+      for (int i = 0; i < numFields; i++) {
+          if (typeAr[i].isVariableLength()) {
+              convertSlotted(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator);
+              return;
+          }
+      }
+
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
           nrecbytes += typeAr[i].getLen();
@@ -224,4 +233,59 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /**
+   * convert() for tuples with a variable-length field, which are stored on
+   * slotted pages. Pages are filled until the next tuple does not fit.
+   */
+  private static void convertSlotted(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+    BufferedReader br = new BufferedReader(new FileReader(inFile));
+    FileOutputStream os = new FileOutputStream(outFile);
+    String separator = Pattern.quote(String.valueOf(fieldSeparator));
+    List<byte[]> pageTuples = new ArrayList<>();
+    int pageBytes = 0;
+    int npages = 0;
+
+    String line;
+    nextLine:
+    while ((line = br.readLine()) != null) {
+        if (line.isEmpty())
+            continue;
+        String[] values = line.split(separator, -1);
+        ByteArrayOutputStream tupleBAOS = new ByteArrayOutputStream();
+        DataOutputStream tupleStream = new DataOutputStream(tupleBAOS);
+        for (int fieldNo = 0; fieldNo < numFields; fieldNo++) {
+            String s = fieldNo < values.length ? values[fieldNo].trim() : "";
+            if (typeAr[fieldNo] == Type.INT_TYPE) {
+                try {
+                    tupleStream.writeInt(Integer.parseInt(s));
+                } catch (NumberFormatException e) {
+                    System.out.println ("BAD LINE : " + line);
+                    continue nextLine;
+                }
+            } else {
+                typeAr[fieldNo].serializeStored(new StringField(s, Type.STRING_LEN, typeAr[fieldNo]), tupleStream);
+            }
+        }
+        tupleStream.flush();
+        byte[] tuple = tupleBAOS.toByteArray();
+
+        // start a new page if the tuple does not fit on this one
+        if (HeapPage.getSlottedPageLen(pageTuples.size() + 1, pageBytes + tuple.length) > npagebytes) {
+            os.write(HeapPage.createSlottedPageData(pageTuples, npagebytes));
+            npages++;
+            pageTuples.clear();
+            pageBytes = 0;
+        }
+        pageTuples.add(tuple);
+        pageBytes += tuple.length;
+    }
+    // an empty file still gets an empty page
+    if (!pageTuples.isEmpty() || npages == 0)
+        os.write(HeapPage.createSlottedPageData(pageTuples, npagebytes));
+    br.close();
+    os.close();
+  }
 }
@@ -4,14 +4,26 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Debug;
 import simpledb.common.Catalog;
+import simpledb.common.Type;
+import simpledb.execution.Predicate;
 import simpledb.transaction.TransactionId;
 
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.io.*;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * Tables whose tuples have a fixed size use the layout described in the
+ * constructor. Tables with a variable-length field (see
+ * {@link Type#isVariableLength()}) use a slotted layout instead: an int
+ * count of slots, followed by an (int offset, int length) entry for each
+ * slot, with the tuples packed at the end of the page. Fields take only
+ * the bytes they need there. An offset of 0 marks an empty slot, so a page
+ * of zeroes is empty in both layouts.
  *
  * @see HeapFile
  * @see BufferPool
@@ -22,10 +34,33 @@ public class HeapPage implements Page {
     final TupleDesc td;
     final byte[] header;
     final Tuple[] tuples;
+    /**
+     * The tuples decoded from the frame so far, by slot. Unlike tuples, which
+     * holds the modified ones, these only save decoding the same slot again.
+     */
+    private final AtomicReferenceArray<Tuple> decoded;
     final int numSlots;
+    final int pageSize;
+    final boolean slotted;
+
+    private static final int SLOTTED_HEADER_SIZE = 4;
+    private static final int SLOT_ENTRY_SIZE = 8;
 
-    byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    // Slotted layout only, guarded by this: where each unmodified tuple
+    // lies in the frame, and the bytes all the tuples on the page take.
+    private int[] slotOffsets;
+    private int[] slotLengths;
+    private int usedBytes;
+
+    /**
+     * The page image as it was last read from or written to disk: a copy of
+     * the bytes the page was built from, a BufferPool frame, or a read-only
+     * view of a memory-mapped file. Slots that have not been modified are
+     * decoded from it on demand, and it doubles as the before image. Written
+     * under this. Readers read it without the monitor: its contents only
+     * change under an X lock, and it is only detached from an unpinned page.
+     */
+    private volatile ByteBuffer frame;
 
     private TransactionId tid;
 
@@ -34,41 +69,166 @@ public class HeapPage implements Page {
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      * Specifically, the number of tuples is equal to: <p>
-     * floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     * floor((page size*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
-     * database table, which can be determined via {@link Catalog#getTupleDesc}.
+     * database table, which can be determined via {@link Catalog#getTupleDesc},
+     * and the page size is that of the table's HeapFile, see
+     * {@link DbFile#getPageSize()}.
      * The number of 8-bit header words is equal to:
      * <p>
      * ceiling(no. tuple slots / 8)
      * <p>
+     * Only the header is parsed here. Tuples are decoded from a copy of the
+     * data when they are accessed, and that copy serves as the before image.
      *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(Arrays.copyOf(data,
+                Database.getCatalog().getDatabaseFile(id.getTableId()).getPageSize())));
+    }
+
+    /**
+     * Create a HeapPage on top of a frame of the BufferPool's off-heap arena,
+     * or on a read-only view of a memory-mapped HeapFile. Only the header is
+     * copied to the heap; tuples are decoded from the frame when they are
+     * accessed, and the frame itself serves as the before image.
+     *
+     * @param id    the id of this page
+     * @param frame the page image, exactly one page long
+     * @see FrameArena
+     */
+    public HeapPage(HeapPageId id, ByteBuffer frame) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = frame.capacity();
+        this.slotted = isSlotted(td);
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        this.header = new byte[getHeaderSize()];
+        this.tuples = new Tuple[numSlots];
+        this.decoded = new AtomicReferenceArray<>(numSlots);
+        this.frame = frame;
+        if (slotted) {
+            // the header only lives in memory; it is rebuilt from the slots
+            readSlots();
+        } else {
+            for (int i = 0; i < header.length; i++)
+                header[i] = frame.get(i);
+        }
+    }
 
-        // allocate and read the header slots of this page
-        // The data structure on the disk is the same as that in memory, so we read the header out first.
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
+    /**
+     * @return true if pages of a table with the given tuple descriptor use
+     * the slotted layout
+     */
+    static boolean isSlotted(TupleDesc td) {
+        for (int j = 0; j < td.numFields(); j++) {
+            if (td.getFieldType(j).isVariableLength())
+                return true;
+        }
+        return false;
+    }
 
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
+    /**
+     * Read the slot entries of a slotted page from the frame.
+     */
+    private synchronized void readSlots() {
+        slotOffsets = new int[numSlots];
+        slotLengths = new int[numSlots];
+        usedBytes = 0;
+        Arrays.fill(header, (byte) 0);
+        int count = frame.getInt(0);
+        for (int i = 0; i < count; i++) {
+            int offset = frame.getInt(SLOTTED_HEADER_SIZE + i * SLOT_ENTRY_SIZE);
+            if (offset == 0)
+                continue;
+            slotOffsets[i] = offset;
+            slotLengths[i] = frame.getInt(SLOTTED_HEADER_SIZE + i * SLOT_ENTRY_SIZE + 4);
+            usedBytes += slotLengths[i];
+            markSlotUsed(i, true);
         }
-        dis.close();
+    }
 
-        setBeforeImage();
+    /**
+     * @return the offset in the frame of the tuple in slot i
+     */
+    private int slotOffset(int i) {
+        return slotted ? slotOffsets[i] : header.length + i * td.getSize();
+    }
+
+    /**
+     * @return the number of bytes the field of the given type at the given
+     * offset of the frame takes
+     */
+    private int fieldLen(ByteBuffer frame, Type type, int offset) {
+        return slotted ? type.getStoredLen(frame, offset) : type.getLen();
+    }
+
+    /**
+     * @return true if this page is backed by an off-heap frame
+     */
+    public synchronized boolean isFrameBacked() {
+        return frame != null && frame.isDirect();
+    }
+
+    /**
+     * Stop using the off-heap frame so that the BufferPool can hand it to
+     * another page. The frame contents are copied to the heap first, so
+     * anyone still holding this page keeps seeing the same data.
+     */
+    synchronized void detachFrame() {
+        if (frame == null || !frame.isDirect())
+            return;
+        byte[] copy = new byte[frame.capacity()];
+        ByteBuffer src = frame.duplicate();
+        src.clear();
+        src.get(copy);
+        frame = ByteBuffer.wrap(copy);
+    }
+
+    /**
+     * Return the tuple in slot i, decoding it from the frame the first time
+     * it is read. Readers share the decoded tuple and do not take the page
+     * monitor.
+     */
+    private Tuple tupleAt(int i) {
+        Tuple t = tuples[i];
+        if (t != null || !isSlotUsed(i))
+            return t;
+        t = decoded.get(i);
+        if (t != null)
+            return t;
+        ByteBuffer frame = this.frame;
+        t = new Tuple(td);
+        t.setRecordId(new RecordId(pid, i));
+        int offset = slotOffset(i);
+        for (int j = 0; j < td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            t.setField(j, type.parse(frame, offset));
+            offset += fieldLen(frame, type, offset);
+        }
+        // a concurrent reader may have decoded it too; keep the first
+        return decoded.compareAndSet(i, null, t) ? t : decoded.get(i);
+    }
+
+    /**
+     * @return true if the tuple in slot i passes the predicate. Unless the
+     * tuple was modified, the operand is compared to the stored bytes of the
+     * field, see {@link Type#compare(ByteBuffer, int, Predicate.Op, Field)}.
+     */
+    private boolean matches(int i, Predicate p) {
+        Tuple t = tuples[i];
+        if (t == null)
+            t = decoded.get(i);
+        if (t != null)
+            return t.getField(p.getField()).compare(p.getOp(), p.getOperand());
+        ByteBuffer frame = this.frame;
+        int offset = slotOffset(i);
+        for (int k = 0; k < p.getField(); k++)
+            offset += fieldLen(frame, td.getFieldType(k), offset);
+        return td.getFieldType(p.getField()).compare(frame, offset, p.getOp(), p.getOperand());
     }
 
     /**
@@ -78,7 +238,20 @@ public class HeapPage implements Page {
      */
     private int getNumTuples() {
         // some code goes here
-        return (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        if (slotted)
+            return (pageSize - SLOTTED_HEADER_SIZE) / (SLOT_ENTRY_SIZE + getMinTupleLen());
+        return (pageSize * 8) / (td.getSize() * 8 + 1);
+    }
+
+    /**
+     * @return the fewest bytes a tuple takes on a slotted page
+     */
+    private int getMinTupleLen() {
+        int len = 0;
+        for (int j = 0; j < td.numFields(); j++) {
+            len += td.getFieldType(j).getMinStoredLen();
+        }
+        return len;
     }
 
     /**
@@ -100,24 +273,33 @@ public class HeapPage implements Page {
      * -- used by recovery
      */
     public HeapPage getBeforeImage() {
-        try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid, oldDataRef);
-        } catch (IOException e) {
-            e.printStackTrace();
-            //should never happen -- we parsed it OK before!
-            System.exit(1);
+        byte[] oldData;
+        synchronized (this) {
+            oldData = new byte[frame.capacity()];
+            ByteBuffer src = frame.duplicate();
+            src.clear();
+            src.get(oldData);
         }
-        return null;
+        return new HeapPage(pid, ByteBuffer.wrap(oldData));
     }
 
-    public void setBeforeImage() {
-        synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+    public synchronized void setBeforeImage() {
+        // Write the current contents back into the frame and drop the decoded
+        // copies of modified tuples. A read-only frame, a view of a
+        // memory-mapped file, is replaced by a heap copy instead.
+        byte[] data = getPageData();
+        Arrays.fill(tuples, null);
+        for (int i = 0; i < numSlots; i++)
+            decoded.set(i, null);
+        if (frame.isReadOnly()) {
+            frame = ByteBuffer.wrap(data);
+        } else {
+            ByteBuffer dst = frame.duplicate();
+            dst.clear();
+            dst.put(data);
         }
+        if (slotted)
+            readSlots();
     }
 
     /**
@@ -128,40 +310,6 @@ public class HeapPage implements Page {
         return pid;
     }
 
-    /**
-     * Suck up tuples from the source file.
-     */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
-        }
-
-        return t;
-    }
-
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -174,7 +322,9 @@ public class HeapPage implements Page {
      * @see #HeapPage
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
+        if (slotted)
+            return getSlottedPageData();
+        int len = pageSize;
         ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
         DataOutputStream dos = new DataOutputStream(baos);
 
@@ -202,6 +352,16 @@ public class HeapPage implements Page {
                 continue;
             }
 
+            // non-empty slot, never modified since it was read
+            if (tuples[i] == null) {
+                try {
+                    dos.write(rawSlot(i));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                continue;
+            }
+
             // non-empty slot
             for (int j = 0; j < td.numFields(); j++) {
                 Field f = tuples[i].getField(j);
@@ -214,7 +374,7 @@ public class HeapPage implements Page {
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
+        int zerolen = pageSize - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
         byte[] zeroes = new byte[zerolen];
         try {
             dos.write(zeroes, 0, zerolen);
@@ -231,6 +391,119 @@ public class HeapPage implements Page {
         return baos.toByteArray();
     }
 
+    /**
+     * getPageData() for the slotted layout: tuples are packed from the end of
+     * the page in slot order, and only the slots up to the last used one get
+     * an entry.
+     */
+    private synchronized byte[] getSlottedPageData() {
+        int count = getSlotCount();
+        List<byte[]> storedTuples = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (!isSlotUsed(i))
+                storedTuples.add(null);
+            else
+                storedTuples.add(tuples[i] == null ? rawSlot(i) : storedTuple(tuples[i]));
+        }
+        return createSlottedPageData(storedTuples, pageSize);
+    }
+
+    /**
+     * @return the number of slot entries a slotted page needs: one past the
+     * last used slot
+     */
+    private int getSlotCount() {
+        for (int i = numSlots - 1; i >= 0; i--) {
+            if (isSlotUsed(i))
+                return i + 1;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the tuple as it is stored on a slotted page
+     */
+    private byte[] storedTuple(Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int j = 0; j < td.numFields(); j++)
+                td.getFieldType(j).serializeStored(t.getField(j), dos);
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * @return the number of bytes the given tuple takes on a slotted page
+     */
+    private int storedLen(Tuple t) {
+        int len = 0;
+        for (int j = 0; j < td.numFields(); j++)
+            len += td.getFieldType(j).getStoredLen(t.getField(j));
+        return len;
+    }
+
+    /**
+     * @return the number of bytes the tuple in the used slot i takes on a
+     * slotted page
+     */
+    private synchronized int slotLen(int i) {
+        return tuples[i] == null ? slotLengths[i] : storedLen(tuples[i]);
+    }
+
+    /**
+     * @return the bytes of slot i as stored in the frame
+     */
+    private synchronized byte[] rawSlot(int i) {
+        byte[] bytes = new byte[slotted ? slotLengths[i] : td.getSize()];
+        ByteBuffer src = frame.duplicate();
+        src.clear();
+        src.position(slotOffset(i));
+        src.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Static method to generate the data of a slotted page holding the
+     * given tuples, each already encoded the way a slotted page stores it,
+     * in slot order. A null entry leaves its slot empty.
+     *
+     * @throws IllegalArgumentException if the tuples do not fit on a page
+     */
+    public static byte[] createSlottedPageData(List<byte[]> storedTuples, int pageSize) {
+        int bytes = 0;
+        for (byte[] t : storedTuples)
+            bytes += t == null ? 0 : t.length;
+        if (getSlottedPageLen(storedTuples.size(), bytes) > pageSize)
+            throw new IllegalArgumentException("tuples do not fit on a page of " + pageSize + " bytes");
+        byte[] data = new byte[pageSize];
+        ByteBuffer dst = ByteBuffer.wrap(data);
+        dst.putInt(0, storedTuples.size());
+        int end = pageSize;
+        for (int i = 0; i < storedTuples.size(); i++) {
+            byte[] t = storedTuples.get(i);
+            if (t == null)
+                continue;
+            end -= t.length;
+            System.arraycopy(t, 0, data, end, t.length);
+            dst.putInt(SLOTTED_HEADER_SIZE + i * SLOT_ENTRY_SIZE, end);
+            dst.putInt(SLOTTED_HEADER_SIZE + i * SLOT_ENTRY_SIZE + 4, t.length);
+        }
+        return data;
+    }
+
+    /**
+     * @return the number of bytes a slotted page with the given number of
+     * slots and bytes of tuples takes up
+     */
+    public static int getSlottedPageLen(int numSlots, int tupleBytes) {
+        return SLOTTED_HEADER_SIZE + numSlots * SLOT_ENTRY_SIZE + tupleBytes;
+    }
+
     /**
      * Static method to generate a byte array corresponding to an empty
      * HeapPage.
@@ -241,8 +514,20 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.getPageSize();
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Like {@link #createEmptyPageData()}, for a HeapFile with the given page
+     * size.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
+    }
+
+    @Override
+    public int getPageSize() {
+        return pageSize;
     }
 
     /**
@@ -266,6 +551,11 @@ public class HeapPage implements Page {
         } else if (!isSlotUsed(tupleNumber)) {
             throw new DbException("Tuple slot is already empty!");
         }
+        if (slotted) {
+            synchronized (this) {
+                usedBytes -= slotLen(tupleNumber);
+            }
+        }
         markSlotUsed(tupleNumber, false);
         tuples[tupleNumber] = null;
     }
@@ -289,6 +579,15 @@ public class HeapPage implements Page {
         }
         for (int i = 0; i < getNumTuples(); i++) {
             if (!isSlotUsed(i)) {
+                if (slotted) {
+                    synchronized (this) {
+                        int len = storedLen(t);
+                        int slotCount = Math.max(getSlotCount(), i + 1);
+                        if (getSlottedPageLen(slotCount, usedBytes + len) > pageSize)
+                            break;
+                        usedBytes += len;
+                    }
+                }
                 markSlotUsed(i, true);
                 t.setRecordId(new RecordId(pid, i)); //
                 tuples[i] = t;
@@ -320,7 +619,8 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Returns the number of empty slots on this page.
+     * Returns the number of empty slots on this page. On a slotted page,
+     * the number of the smallest possible tuples that still fit.
      */
     public int getNumEmptySlots() {
         // some code goes here
@@ -329,9 +629,29 @@ public class HeapPage implements Page {
             if (!isSlotUsed(i))
                 numEmptySlots++;
         }
+        if (slotted) {
+            synchronized (this) {
+                int free = pageSize - getSlottedPageLen(getSlotCount(), usedBytes);
+                // a new tuple may need a slot entry too
+                numEmptySlots = Math.min(numEmptySlots, free / (SLOT_ENTRY_SIZE + getMinTupleLen()));
+            }
+        }
         return numEmptySlots;
     }
 
+    /**
+     * @return true if the given tuple fits on this page
+     */
+    public synchronized boolean hasRoomFor(Tuple t) {
+        if (!slotted)
+            return getNumEmptySlots() > 0;
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i))
+                return getSlottedPageLen(Math.max(getSlotCount(), i + 1), usedBytes + storedLen(t)) <= pageSize;
+        }
+        return false;
+    }
+
     /**
      * Returns true if associated slot on this page is filled.
      */
@@ -375,24 +695,36 @@ public class HeapPage implements Page {
 //            }
 //        }
 //        return tupleList.iterator();
-        return new TupleIterator(tuples);
+        return new TupleIterator(null);
     }
 
-    private static class TupleIterator implements Iterator<Tuple> {
+    /**
+     * @return an iterator over the tuples on this page that pass the given
+     * predicate. The predicate is evaluated on the bytes of its field alone,
+     * and only the tuples that pass are decoded.
+     */
+    public Iterator<Tuple> iterator(Predicate p) {
+        return new TupleIterator(p);
+    }
 
-        private final Tuple[] tuples;
+    private class TupleIterator implements Iterator<Tuple> {
 
+        private final Predicate p; // or null
         private int index = 0;
+        private int passed = -1; // the slot the predicate was last evaluated on and passed
 
-        public TupleIterator(Tuple[] tuples) {
-            this.tuples = tuples;
-
+        TupleIterator(Predicate p) {
+            this.p = p;
         }
 
         @Override
         public boolean hasNext() {
-            for (; index < tuples.length; index++) {
-                if (tuples[index] != null) {
+            for (; index < numSlots; index++) {
+                if (index == passed)
+                    return true;
+                if (isSlotUsed(index)
+                        && (p == null || matches(index, p))) {
+                    passed = index;
                     return true;
                 }
             }
@@ -402,7 +734,9 @@ public class HeapPage implements Page {
 
         @Override
         public Tuple next() {
-            return tuples[index++];
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return tupleAt(index++);
         }
 
         @Override
@@ -0,0 +1,136 @@
+package simpledb.storage;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The victim is the page whose
+ * K-th most recent reference lies furthest in the past. Pages referenced fewer
+ * than K times have an infinite backward K-distance and are evicted first, in
+ * LRU order of their last reference, so a single sequential scan cannot push
+ * out pages that are referenced repeatedly.
+ * <p>
+ * Pages are kept in a TreeSet ordered by their K-th most recent reference, so
+ * a hit costs O(log n) and victim selection is O(1) unless the oldest pages
+ * are not evictable.
+ */
+public class LRUKReplacementPolicy implements ReplacementPolicy {
+
+    public static final int DEFAULT_K = 2;
+
+    private final int k;
+    private final Map<PageId, History> histories;
+    private final TreeSet<History> queue;
+    private long clock;
+
+    /**
+     * Keeps the last K reference times of one page, as a ring buffer.
+     */
+    private static class History {
+        private final PageId pid;
+        private final long[] refs;
+        private int count; // number of references recorded, capped at refs.length
+        private int next;  // index in refs where the next reference goes
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.refs = new long[k];
+        }
+
+        void reference(long time) {
+            refs[next] = time;
+            next = (next + 1) % refs.length;
+            if (count < refs.length)
+                count++;
+        }
+
+        /**
+         * @return the time of the K-th most recent reference, or -1 if the
+         * page was referenced fewer than K times
+         */
+        long kthReference() {
+            return count < refs.length ? -1 : refs[next];
+        }
+
+        long lastReference() {
+            return refs[(next + refs.length - 1) % refs.length];
+        }
+    }
+
+    private static final Comparator<History> ORDER = Comparator
+            .comparingLong(History::kthReference)
+            .thenComparingLong(History::lastReference);
+
+    public LRUKReplacementPolicy() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the number of past references considered for each page
+     */
+    public LRUKReplacementPolicy(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("K must be at least 1");
+        this.k = k;
+        this.histories = new HashMap<>();
+        this.queue = new TreeSet<>(ORDER);
+        this.clock = 0;
+    }
+
+    @Override
+    public synchronized void recordInsert(PageId pid) {
+        History history = histories.get(pid);
+        if (history == null) {
+            history = new History(pid, k);
+            history.reference(++clock);
+            histories.put(pid, history);
+            queue.add(history);
+        } else {
+            reference(history);
+        }
+    }
+
+    @Override
+    public synchronized void recordAccess(PageId pid) {
+        History history = histories.get(pid);
+        if (history != null)
+            reference(history);
+    }
+
+    private void reference(History history) {
+        // The ordering key changes, so the entry has to be re-inserted.
+        queue.remove(history);
+        history.reference(++clock);
+        queue.add(history);
+    }
+
+    @Override
+    public synchronized void remove(PageId pid) {
+        History history = histories.remove(pid);
+        if (history != null)
+            queue.remove(history);
+    }
+
+    @Override
+    public synchronized PageId evict(Predicate<PageId> evictable) {
+        Iterator<History> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            History history = iterator.next();
+            if (evictable.test(history.pid)) {
+                iterator.remove();
+                histories.remove(history.pid);
+                return history.pid;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized int size() {
+        return histories.size();
+    }
+}
@@ -157,6 +157,8 @@ public class LogFile {
         // calls rollback
 
         synchronized (Database.getBufferPool()) {
+            // pages stolen from the pool may still be on their way to disk
+            Database.getBufferPool().awaitSteals();
 
             synchronized (this) {
                 preAppend();
@@ -280,7 +282,7 @@ public class LogFile {
             }
             pid = (PageId) idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            Constructor<?> pageConst = getPageConstructor(pageClass);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -290,7 +292,7 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
+            newPage = (Page) pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
@@ -301,6 +303,20 @@ public class LogFile {
 
     }
 
+    /**
+     * Find the Page(PageId id, byte[] data) constructor required by the Page
+     * interface. Page classes may declare other constructors as well (e.g.
+     * HeapPage can be built on a BufferPool frame), so pick it by signature.
+     */
+    private static Constructor<?> getPageConstructor(Class<?> pageClass) throws IOException {
+        for (Constructor<?> constructor : pageClass.getDeclaredConstructors()) {
+            Class<?>[] params = constructor.getParameterTypes();
+            if (params.length == 2 && PageId.class.isAssignableFrom(params[0]) && params[1] == byte[].class)
+                return constructor;
+        }
+        throw new IOException("no (PageId, byte[]) constructor in " + pageClass.getName());
+    }
+
     /**
      * Write a BEGIN record for the specified transaction
      *
@@ -323,12 +339,22 @@ public class LogFile {
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
+    /**
+     * @return true if the transaction has begun and not yet committed or
+     * aborted, i.e. if its changes can still be rolled back from this log
+     */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     /**
      * Checkpoint the log and write a checkpoint record.
      */
     public void logCheckpoint() throws IOException {
         //make sure we have buffer pool lock before proceeding
         synchronized (Database.getBufferPool()) {
+            // pages stolen from the pool may still be on their way to disk
+            Database.getBufferPool().awaitSteals();
             synchronized (this) {
                 //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
                 preAppend();
@@ -480,9 +506,13 @@ public class LogFile {
     public void rollback(TransactionId tid)
             throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            // pages stolen from the pool may still be on their way to disk
+            Database.getBufferPool().awaitSteals();
             synchronized (this) {
                 preAppend();
                 // some code goes here
+                // the background writer may still be writing this transaction's pages
+                Database.getBufferPool().awaitWriteAhead();
                 raf.seek(tidToFirstLogRecord.get(tid.getId()));
                 Set<PageId> rollbackPages = new HashSet<>();
                 while (true) {
@@ -542,6 +572,12 @@ public class LogFile {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
+        try {
+            Database.getBufferPool().savePageList(); // for a warm restart, if enabled
+        } catch (IOException e) {
+            System.out.println("ERROR SAVING THE BUFFER POOL PAGE LIST -- IGNORING.");
+            e.printStackTrace();
+        }
     }
 
     /**
@@ -58,4 +58,15 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Return the size of this page on disk in bytes, i.e. the page size of
+     * the file it belongs to. The BufferPool charges every resident page
+     * this many bytes against its memory budget.
+     *
+     * @return the size of this page in bytes
+     */
+    default int getPageSize() {
+        return BufferPool.getPageSize();
+    }
 }
@@ -0,0 +1,200 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * PageChannel does the disk I/O of a DbFile with positional FileChannel
+ * reads and writes. Unlike seek() followed by read() on a shared
+ * RandomAccessFile, a positional transfer does not move a shared file
+ * pointer, so threads reading and writing pages of the same file run in
+ * parallel instead of serializing on the file.
+ * <p>
+ * Transfers to and from byte arrays go through page-sized direct buffers
+ * taken from a small pool, which saves the channel copying through a
+ * temporary buffer of its own. A thread interrupted during a transfer
+ * closes a FileChannel for every thread, so the channel is reopened when
+ * that happens.
+ *
+ * @Threadsafe
+ */
+public class PageChannel {
+
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private final File f;
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+    private volatile FileChannel channel;
+
+    /**
+     * Open the file for reading and writing, creating it if it does not exist.
+     *
+     * @param f          the file
+     * @param bufferSize the size of the pooled direct buffers, i.e. the page size
+     */
+    public PageChannel(File f, int bufferSize) throws IOException {
+        this.f = f;
+        this.bufferSize = bufferSize;
+        this.channel = open();
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(f.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE);
+    }
+
+    /**
+     * Reopen the channel, unless another thread already has.
+     */
+    private synchronized FileChannel reopen(FileChannel closed) throws IOException {
+        if (channel == closed)
+            channel = open();
+        return channel;
+    }
+
+    private ByteBuffer borrow() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null)
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+        buffer.clear();
+        return buffer;
+    }
+
+    private void giveBack(ByteBuffer buffer) {
+        buffers.offer(buffer);
+    }
+
+    /**
+     * Read bytes starting at the given position of the file until dst is
+     * full or the end of the file is reached.
+     *
+     * @return the number of bytes read, less than were asked for only at the
+     * end of the file
+     */
+    public int read(long position, ByteBuffer dst) throws IOException {
+        int start = dst.position();
+        while (dst.hasRemaining()) {
+            int read = transfer(position + dst.position() - start, dst, false);
+            if (read == -1)
+                break;
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Read len bytes starting at the given position of the file into
+     * dst[off..off+len), or as many as there are before the end of the file.
+     *
+     * @return the number of bytes read, less than len only at the end of the file
+     */
+    public int read(long position, byte[] dst, int off, int len) throws IOException {
+        ByteBuffer buffer = borrow();
+        try {
+            int done = 0;
+            while (done < len) {
+                int chunk = Math.min(bufferSize, len - done);
+                buffer.clear();
+                buffer.limit(chunk);
+                int read = read(position + done, buffer);
+                buffer.flip();
+                buffer.get(dst, off + done, read);
+                done += read;
+                if (read < chunk)
+                    break;
+            }
+            return done;
+        } finally {
+            giveBack(buffer);
+        }
+    }
+
+    /**
+     * Read dst.length bytes starting at the given position of the file, or as
+     * many as there are before the end of the file.
+     *
+     * @return the number of bytes read
+     */
+    public int read(long position, byte[] dst) throws IOException {
+        return read(position, dst, 0, dst.length);
+    }
+
+    /**
+     * Write all of src at the given position of the file, extending the file
+     * if needed.
+     */
+    public void write(long position, byte[] src) throws IOException {
+        ByteBuffer buffer = borrow();
+        try {
+            int done = 0;
+            while (done < src.length) {
+                buffer.clear();
+                int len = Math.min(bufferSize, src.length - done);
+                buffer.put(src, done, len);
+                buffer.flip();
+                while (buffer.hasRemaining())
+                    transfer(position + done + buffer.position(), buffer, true);
+                done += len;
+            }
+        } finally {
+            giveBack(buffer);
+        }
+    }
+
+    /**
+     * @return the current size of the file in bytes
+     */
+    public long size() throws IOException {
+        FileChannel c = channel;
+        try {
+            return c.size();
+        } catch (ClosedChannelException e) {
+            FileChannel reopened = reopen(c);
+            if (e instanceof ClosedByInterruptException)
+                throw e;
+            return reopened.size();
+        }
+    }
+
+    /**
+     * Map a region of the file into memory, read-only. The mapping stays
+     * valid after the channel is closed or reopened, and it sees later
+     * writes to the region.
+     */
+    public MappedByteBuffer map(long position, int size) throws IOException {
+        FileChannel c = channel;
+        try {
+            return c.map(FileChannel.MapMode.READ_ONLY, position, size);
+        } catch (ClosedChannelException e) {
+            FileChannel reopened = reopen(c);
+            if (e instanceof ClosedByInterruptException)
+                throw e;
+            return reopened.map(FileChannel.MapMode.READ_ONLY, position, size);
+        }
+    }
+
+    /**
+     * One positional read or write, retried once on a channel another
+     * thread's interrupt has closed. The interrupted thread itself gets the
+     * exception, after the channel is reopened for the others.
+     */
+    private int transfer(long position, ByteBuffer buffer, boolean write) throws IOException {
+        FileChannel c = channel;
+        try {
+            return write ? c.write(buffer, position) : c.read(buffer, position);
+        } catch (ClosedChannelException e) {
+            FileChannel reopened = reopen(c);
+            if (e instanceof ClosedByInterruptException)
+                throw e;
+            return write ? reopened.write(buffer, position) : reopened.read(buffer, position);
+        }
+    }
+}
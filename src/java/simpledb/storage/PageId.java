@@ -32,5 +32,14 @@ public interface PageId {
     boolean equals(Object o);
 
     int getPageNumber();
+
+    /**
+     * @return true if this page only routes lookups to other pages of its
+     *   table, like the internal pages of a B+ tree. The BufferPool treats
+     *   such pages as {@link simpledb.common.CachePriority#HIGH} priority.
+     */
+    default boolean isInnerNode() {
+        return false;
+    }
 }
 
@@ -0,0 +1,178 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.transaction.TransactionId;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * PageVersions lets snapshot transactions read pages as they were committed
+ * when the transaction began, without taking any locks. Every commit that
+ * changes pages advances a commit clock, and a snapshot transaction reads as
+ * of the clock value at its start.
+ * <p>
+ * The committed image of a page is its before image while it is resident;
+ * the BufferPool only refreshes before images when a transaction commits.
+ * Pages whose disk copy may hold uncommitted changes, because they were
+ * written out before their transaction completed, keep their committed image
+ * here until it does. When a commit supersedes committed images while
+ * snapshot transactions are running, the old images are kept, stamped with
+ * the commit time, for as long as some snapshot older than that may read them.
+ *
+ * @Threadsafe
+ */
+public class PageVersions {
+
+    /**
+     * A committed page image and the commit that superseded it.
+     */
+    private static class Version {
+        private final Page image;
+        private final long supersededAt;
+
+        Version(Page image, long supersededAt) {
+            this.image = image;
+            this.supersededAt = supersededAt;
+        }
+    }
+
+    private long clock; // time of the last commit, guarded by this
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    private final Map<PageId, Deque<Version>> superseded = new HashMap<>(); // oldest first
+    private final Map<PageId, Page> committedImages = new HashMap<>();
+
+    /**
+     * Start a snapshot transaction reading as of the last commit.
+     */
+    public synchronized void begin(TransactionId tid) {
+        snapshots.put(tid, clock);
+    }
+
+    /**
+     * @return true if the transaction is a running snapshot transaction
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return !snapshots.isEmpty() && snapshots.containsKey(tid);
+    }
+
+    /**
+     * End a snapshot transaction and drop the versions nobody needs any more.
+     */
+    public synchronized void end(TransactionId tid) {
+        if (snapshots.remove(tid) != null)
+            prune();
+    }
+
+    /**
+     * Keep the committed image of a page whose uncommitted changes are about
+     * to be written to disk. Must be called before the page is written; an
+     * image kept earlier for the same changes is not replaced.
+     */
+    public synchronized void preserve(PageId pid, Page committed) {
+        committedImages.putIfAbsent(pid, committed);
+    }
+
+    /**
+     * Make the changes of a committing transaction visible to new snapshots.
+     * The install action refreshes the before images of the changed pages;
+     * it runs with this monitor held, so no snapshot read sees half of it.
+     *
+     * @param changed   the pages the transaction may have changed
+     * @param residents the resident page for an id, or null
+     * @param install   refreshes the before images
+     */
+    public synchronized void commit(Collection<PageId> changed, Function<PageId, Page> residents,
+                                    Runnable install) {
+        long now = ++clock;
+        for (PageId pid : changed) {
+            Page committed = committedImages.remove(pid);
+            if (snapshots.isEmpty())
+                continue;
+            if (committed == null) {
+                Page resident = residents.apply(pid);
+                if (resident == null)
+                    continue;
+                committed = resident.getBeforeImage();
+            }
+            superseded.computeIfAbsent(pid, p -> new ArrayDeque<>()).addLast(new Version(committed, now));
+        }
+        install.run();
+    }
+
+    /**
+     * Forget the committed images kept for the pages of an aborted
+     * transaction, once its changes are rolled back.
+     */
+    public synchronized void abort(Collection<PageId> changed) {
+        for (PageId pid : changed)
+            committedImages.remove(pid);
+    }
+
+    /**
+     * Read a page as the given snapshot transaction sees it. The page
+     * returned is a private copy or an immutable old version, never the
+     * BufferPool's own page.
+     *
+     * @param residents the resident page for an id, or null
+     */
+    public Page read(TransactionId tid, PageId pid, Function<PageId, Page> residents) throws DbException {
+        Long snapshot = snapshots.get(tid);
+        if (snapshot == null)
+            throw new DbException("transaction " + tid.getId() + " is not a snapshot transaction");
+        Page page = lookup(snapshot, pid, residents);
+        if (page != null)
+            return page;
+        Page disk = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+        // A transaction may have changed and committed the page while it was read;
+        // it then left either a kept or a superseded image, or the page resident.
+        page = lookup(snapshot, pid, residents);
+        return page != null ? page : disk;
+    }
+
+    private synchronized Page lookup(long snapshot, PageId pid, Function<PageId, Page> residents) {
+        Deque<Version> versions = superseded.get(pid);
+        if (versions != null) {
+            for (Version version : versions) {
+                if (version.supersededAt > snapshot)
+                    return version.image;
+            }
+        }
+        Page committed = committedImages.get(pid);
+        if (committed != null)
+            return committed;
+        Page resident = residents.apply(pid);
+        return resident == null ? null : resident.getBeforeImage();
+    }
+
+    /**
+     * Drop the versions superseded before the oldest running snapshot began.
+     */
+    private void prune() {
+        if (snapshots.isEmpty()) {
+            superseded.clear();
+            return;
+        }
+        long oldest = Collections.min(snapshots.values());
+        Iterator<Deque<Version>> it = superseded.values().iterator();
+        while (it.hasNext()) {
+            Deque<Version> versions = it.next();
+            while (!versions.isEmpty() && versions.peekFirst().supersededAt <= oldest)
+                versions.pollFirst();
+            if (versions.isEmpty())
+                it.remove();
+        }
+    }
+
+    /**
+     * @return the number of superseded page images kept for snapshots
+     */
+    public synchronized int getNumVersions() {
+        int count = 0;
+        for (Deque<Version> versions : superseded.values())
+            count += versions.size();
+        return count;
+    }
+}
@@ -0,0 +1,78 @@
+package simpledb.storage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * Replacement across priority ranks. Every rank has a replacement policy of
+ * its own -- its own CLOCK hand, or LRU-K history -- and evict() asks the
+ * policy of the lowest rank first, moving to the next rank only if none of
+ * its pages is evictable. A page is thus only given up once no page of a
+ * lower rank can be, and finding it never sweeps the pages of higher ranks.
+ * <p>
+ * A page keeps the rank it had when it became resident until it leaves.
+ *
+ * @see simpledb.common.CachePriority
+ */
+public class PriorityReplacementPolicy implements ReplacementPolicy {
+
+    private final ReplacementPolicy[] ranks;
+    private final ToIntFunction<PageId> rankOf;
+    private final Map<PageId, Integer> rankOfPage;
+
+    /**
+     * @param numRanks      the number of ranks; rank 0 is evicted first
+     * @param policyFactory creates the replacement policy of one rank
+     * @param rankOf        the rank of a page that becomes resident
+     */
+    public PriorityReplacementPolicy(int numRanks, Supplier<ReplacementPolicy> policyFactory,
+                                     ToIntFunction<PageId> rankOf) {
+        this.ranks = new ReplacementPolicy[numRanks];
+        for (int i = 0; i < numRanks; i++)
+            ranks[i] = policyFactory.get();
+        this.rankOf = rankOf;
+        this.rankOfPage = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public synchronized void recordInsert(PageId pid) {
+        int rank = rankOfPage.computeIfAbsent(pid, rankOf::applyAsInt);
+        ranks[rank].recordInsert(pid);
+    }
+
+    @Override
+    public void recordAccess(PageId pid) {
+        Integer rank = rankOfPage.get(pid);
+        if (rank != null)
+            ranks[rank].recordAccess(pid);
+    }
+
+    @Override
+    public synchronized void remove(PageId pid) {
+        Integer rank = rankOfPage.remove(pid);
+        if (rank != null)
+            ranks[rank].remove(pid);
+    }
+
+    @Override
+    public synchronized PageId evict(Predicate<PageId> evictable) {
+        for (ReplacementPolicy rank : ranks) {
+            if (rank.size() == 0)
+                continue;
+            PageId victim = rank.evict(evictable);
+            if (victim != null) {
+                rankOfPage.remove(victim);
+                return victim;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        return rankOfPage.size();
+    }
+}
@@ -0,0 +1,55 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which resident page the BufferPool should give up
+ * when it needs a free frame. The BufferPool tells the policy about every page
+ * that becomes resident, every hit, and every page that leaves the pool for
+ * another reason (discard, abort), and asks it for exactly one victim when the
+ * pool is full.
+ * <p>
+ * Implementations must be safe to call from multiple threads.
+ *
+ * @see BufferPool
+ * @see ClockReplacementPolicy
+ * @see LRUKReplacementPolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Called when a page has been brought into the pool.
+     *
+     * @param pid the id of the newly resident page
+     */
+    void recordInsert(PageId pid);
+
+    /**
+     * Called on every buffer pool hit.
+     *
+     * @param pid the id of the page that was accessed
+     */
+    void recordAccess(PageId pid);
+
+    /**
+     * Called when a page leaves the pool without being chosen as a victim,
+     * e.g. because it was discarded by recovery or a B+ tree.
+     *
+     * @param pid the id of the page that is no longer resident
+     */
+    void remove(PageId pid);
+
+    /**
+     * Choose exactly one victim among the resident pages and forget it.
+     *
+     * @param evictable tells whether a candidate page may be evicted right now
+     *                  (e.g. it is not dirty)
+     * @return the id of the victim, or null if no resident page is evictable
+     */
+    PageId evict(Predicate<PageId> evictable);
+
+    /**
+     * @return the number of pages currently tracked by this policy
+     */
+    int size();
+}
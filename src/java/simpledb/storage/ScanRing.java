@@ -0,0 +1,58 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * ScanRing bounds the number of BufferPool frames a large sequential scan
+ * may take. Pages the scan brings into the pool are remembered in load
+ * order, and once more than {@link #getCapacity()} of them are resident the
+ * oldest one is dropped again, so the scan cycles through a small ring of
+ * frames instead of pushing the rest of the pool out.
+ * <p>
+ * Pages the scan finds already resident are not added to the ring: they
+ * belong to somebody else and stay where they are.
+ *
+ * @Threadsafe
+ * @see BufferPool#newScanRing(int)
+ */
+public class ScanRing {
+
+    private final int capacity;
+    private final Deque<PageId> pages;
+
+    /**
+     * @param capacity the number of frames the scan may hold
+     */
+    public ScanRing(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Ring capacity must be at least 1");
+        this.capacity = capacity;
+        this.pages = new ArrayDeque<>(capacity + 1);
+    }
+
+    /**
+     * @return the number of frames the scan may hold
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Record that the scan loaded a page into the pool.
+     *
+     * @return the page that no longer fits in the ring and should leave the
+     * pool, or null if the ring is not full yet
+     */
+    synchronized PageId add(PageId pid) {
+        pages.addLast(pid);
+        return pages.size() > capacity ? pages.pollFirst() : null;
+    }
+
+    /**
+     * @return the number of pages currently in the ring
+     */
+    public synchronized int size() {
+        return pages.size();
+    }
+}
@@ -0,0 +1,38 @@
+package simpledb.transaction;
+
+/**
+ * How the LockManager keeps transactions from waiting for each other
+ * forever. The two prevention policies order transactions by the timestamp
+ * of their TransactionId: a smaller timestamp is an older transaction. A
+ * transaction restarted with {@link Transaction#Transaction(Transaction)}
+ * keeps its timestamp, so it eventually is the oldest and is no longer the
+ * one to abort.
+ */
+public enum DeadlockPolicy {
+    /**
+     * Let transactions wait for anyone, and abort the youngest transaction
+     * on a cycle of the wait-for graph once it forms.
+     */
+    DETECT,
+    /**
+     * An older transaction waits for a younger one; a younger transaction
+     * that would wait for an older one aborts instead.
+     */
+    WAIT_DIE,
+    /**
+     * An older transaction that would wait for a younger one wounds it: the
+     * younger transaction aborts at its next lock request, or at once if it
+     * is waiting. A younger transaction waits for an older one.
+     */
+    WOUND_WAIT;
+
+    /**
+     * @return the policy named by the given string, such as "wound-wait",
+     * or DETECT if the string is null
+     */
+    public static DeadlockPolicy parse(String name) {
+        if (name == null)
+            return DETECT;
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -5,11 +5,37 @@ import simpledb.storage.PageId;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Record the lock information on each page. The information includes the pageId, TransactionId and
  * the LockType, which can be implemented with a ConcurrentHashMap.
+ * <p>
+ * Locks are taken at two granularities (see {@link LockMode}). Before locking a page in S or X
+ * mode, a transaction holds IS or IX on the page's table. A transaction that locks the whole table
+ * in S, SIX or X mode instead reads (and, under X, writes) its pages without any page locks, so a
+ * scan or a bulk update takes one lock rather than one per page. A transaction that collects more
+ * page locks on one table than the escalation threshold has its page locks replaced by one table
+ * lock, if no other transaction holds a conflicting lock on the table.
+ * <p>
+ * The lock table is split into {@link Stripe}s by the hash of the locked resource: a PageId for a
+ * page lock, the Integer table id for a table lock. Every stripe has its own latch guarding its
+ * share of the table and the {@link ResourceLock}s in it, so requests in different stripes never
+ * contend, and a lock is dropped from the table as soon as nobody holds or waits for it. Every
+ * lock has its own FIFO queue of waiting requests, and a waiting thread is parked until the lock
+ * is handed to it instead of polling.
+ * <p>
+ * The locks each transaction holds are recorded in its own {@link HeldLocks}, which is only
+ * written by the transaction itself. A request for a page the transaction has locked already is
+ * answered from there without taking any latch or allocating anything.
+ * <p>
+ * By default deadlocks are detected when they form: whenever a request starts waiting, the
+ * wait-for graph (a waiting transaction waits for the holders of its lock in a conflicting mode
+ * and for the requests queued ahead of it) is searched for a cycle through the new waiter, and the
+ * youngest transaction on the cycle is told to abort. The {@link DeadlockPolicy} chosen at startup
+ * through the {@value #DEADLOCK_POLICY_PROPERTY} system property may instead prevent them, by
+ * wait-die or wound-wait.
  */
 public class LockManager {
     //  locking at page granularity(粒度)
@@ -18,37 +44,339 @@ public class LockManager {
 //    private static final int S_LOCK_WAIT_TIME = 100;
 //    private static final int MAX_RETRY = 3;
 
-    public final Map<TransactionId, Set<PageId>> tpMap = new ConcurrentHashMap<>();
-    public final Map<PageId, PageLock> ppMap = new ConcurrentHashMap<>();
-
-    public synchronized boolean tryLock(TransactionId tid, PageId pid, Permissions perm) {
-        PageLock newLock = new PageLock(pid);
-        // putIfAbsent() will not cover the old value of the map; but put() will.
-        PageLock pageLock = ppMap.putIfAbsent(pid, newLock);
-        if (pageLock == null) // Indicates that a new pair is inserted into "ppMap"
-            pageLock = newLock;
-        Set<PageId> holdLockList = new HashSet<>();
-        Set<PageId> pageIds = tpMap.putIfAbsent(tid, holdLockList);
-        if (pageIds != null)
-            holdLockList = pageIds;
-
-        boolean ans;
-        if (perm == Permissions.READ_ONLY)
-            ans = pageLock.sharedLock(tid);
-        else
-            ans = pageLock.exclusiveLock(tid);
-        if (ans) // Don't forget to change the values in tpMap.
-            // Take care of the pass by reference trick. When we change the "holdLockList",
-            // the relevant value in tpMap is also changed.
-            holdLockList.add(pid);
+    /**
+     * Number of lock table stripes: a power of two, a few per processor.
+     */
+    private static final int NUM_STRIPES =
+            Math.max(16, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1);
+
+    /**
+     * Default number of page locks on one table after which a transaction's locks are escalated.
+     */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /**
+     * The system property naming the deadlock policy: detect, wait-die or wound-wait.
+     */
+    public static final String DEADLOCK_POLICY_PROPERTY = "simpledb.deadlockPolicy";
+
+    private final Map<TransactionId, HeldLocks> tpMap = new ConcurrentHashMap<>();
+    private final Stripe[] stripes = new Stripe[NUM_STRIPES];
+    private final TransactionMetrics metrics = new TransactionMetrics();
+    /**
+     * The request each waiting transaction is waiting on; the nodes of the wait-for graph. Also the
+     * monitor of deadlock detection, which may take stripe latches while holding it, never the
+     * other way round.
+     */
+    private final Map<TransactionId, Waiter> waitsFor = new HashMap<>();
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+    private final DeadlockPolicy deadlockPolicy;
+    /**
+     * Transactions wounded by older ones under WOUND_WAIT; they are refused any further lock.
+     * Added to with the waitsFor monitor held.
+     */
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Create a lock manager with the deadlock policy named by the {@value #DEADLOCK_POLICY_PROPERTY}
+     * system property, detection if it is not set.
+     */
+    public LockManager() {
+        this(DeadlockPolicy.parse(System.getProperty(DEADLOCK_POLICY_PROPERTY)));
+    }
+
+    public LockManager(DeadlockPolicy deadlockPolicy) {
+        this.deadlockPolicy = deadlockPolicy;
+        for (int i = 0; i < stripes.length; i++)
+            stripes[i] = new Stripe();
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return deadlockPolicy;
+    }
+
+    private Stripe stripeOf(Object resource) {
+        int h = resource.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (NUM_STRIPES - 1)];
+    }
+
+    /**
+     * Set the number of page locks a transaction may hold on one table before they are escalated
+     * to a table lock; 0 turns escalation off.
+     */
+    public void setEscalationThreshold(int escalationThreshold) {
+        this.escalationThreshold = Math.max(0, escalationThreshold);
+    }
+
+    /**
+     * @return the number of page locks on one table after which they are escalated, or 0 if
+     * escalation is off
+     */
+    public int getEscalationThreshold() {
+        return escalationThreshold;
+    }
+
+    private HeldLocks heldBy(TransactionId tid) {
+        return tpMap.computeIfAbsent(tid, t -> new HeldLocks());
+    }
+
+    private static long deadline(long timeoutMillis) {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /**
+     * Grant the lock at once if it is free for this transaction, without waiting. A request that
+     * would overtake transactions already waiting for the page is refused, unless this transaction
+     * holds a lock on the page already.
+     *
+     * @return true if the lock was granted
+     */
+    public boolean tryLock(TransactionId tid, PageId pid, Permissions perm) {
+        LockMode mode = LockMode.of(perm);
+        HeldLocks held = tpMap.get(tid);
+        boolean ans = !isWounded(tid) && ((held != null && held.covers(pid, mode))
+                || acquirePage(tid, pid, mode, false, 0).isGranted());
+        metrics.recordLockRequest(ans);
         return ans;
     }
 
-    public boolean holdsLock(TransactionId tid, PageId p) {
-        if (tpMap.containsKey(tid)) {
-            return tpMap.get(tid).contains(p);
+    /**
+     * Wait in the page's queue until the lock is granted, the timeout expires, or the request is
+     * chosen as the victim of a deadlock. Requests are granted in arrival order, except that a
+     * transaction upgrading its shared lock goes ahead of the other waiters.
+     *
+     * @param timeoutMillis how long to wait at most
+     * @return whether the lock was granted, and if not, whether the request timed out or was
+     * refused by the deadlock policy
+     */
+    public LockOutcome lock(TransactionId tid, PageId pid, Permissions perm, long timeoutMillis) {
+        LockMode mode = LockMode.of(perm);
+        HeldLocks held = tpMap.get(tid);
+        if (isWounded(tid))
+            return LockOutcome.ABORTED;
+        if (held != null && held.covers(pid, mode))
+            return LockOutcome.GRANTED;
+        return acquirePage(tid, pid, mode, true, deadline(timeoutMillis));
+    }
+
+    /**
+     * Lock a whole table at once if possible, without waiting. The mode is combined with the one
+     * the transaction holds on the table already, so S requested while holding IX gives SIX.
+     *
+     * @return true if the lock was granted
+     */
+    public boolean tryLockTable(TransactionId tid, int tableId, LockMode mode) {
+        boolean ans = acquireTable(tid, tableId, mode, false, 0).isGranted();
+        metrics.recordLockRequest(ans);
+        return ans;
+    }
+
+    /**
+     * Wait for a lock on a whole table, like {@link #lock} does for a page.
+     *
+     * @param timeoutMillis how long to wait at most
+     * @return whether the lock was granted, and if not, why
+     */
+    public LockOutcome lockTable(TransactionId tid, int tableId, LockMode mode, long timeoutMillis) {
+        return acquireTable(tid, tableId, mode, true, deadline(timeoutMillis));
+    }
+
+    private LockOutcome acquireTable(TransactionId tid, int tableId, LockMode mode, boolean wait, long deadline) {
+        if (isWounded(tid))
+            return LockOutcome.ABORTED;
+        HeldLocks held = tpMap.get(tid);
+        LockMode current = held == null ? null : held.tables.get(tableId);
+        if (current != null && current.covers(mode))
+            return LockOutcome.GRANTED;
+        LockOutcome ans = acquire(tid, tableId, mode, wait, deadline);
+        if (ans.isGranted())
+            heldBy(tid).tables.merge(tableId, mode, LockMode::combine);
+        return ans;
+    }
+
+    private LockOutcome acquirePage(TransactionId tid, PageId pid, LockMode mode, boolean wait, long deadline) {
+        int tableId = pid.getTableId();
+        LockOutcome ans = acquireTable(tid, tableId, mode.intention(), wait, deadline);
+        if (!ans.isGranted())
+            return ans;
+        HeldLocks held = heldBy(tid);
+        if (held.tables.get(tableId).covers(mode)) {
+            // the table lock grants the page already
+            held.cover(pid, mode);
+            return LockOutcome.GRANTED;
+        }
+        ans = acquire(tid, pid, mode, wait, deadline);
+        if (!ans.isGranted())
+            return ans;
+        // Don't forget to change the values in tpMap.
+        LockMode previous = held.pages.get(pid);
+        held.pages.put(pid, previous == null ? mode : previous.combine(mode));
+        if (previous == null) {
+            int pageLocks = held.pageLocks.merge(tableId, 1, Integer::sum);
+            int threshold = escalationThreshold;
+            // retry at every further multiple if other transactions are in the way
+            if (threshold > 0 && pageLocks % threshold == 0)
+                escalate(tid, held, tableId);
+        }
+        return LockOutcome.GRANTED;
+    }
+
+    /**
+     * Replace the transaction's page locks on a table by one table lock strong enough for all of
+     * them, if it can be granted without waiting.
+     */
+    private void escalate(TransactionId tid, HeldLocks held, int tableId) {
+        List<PageId> pids = new ArrayList<>();
+        LockMode mode = LockMode.S;
+        for (Map.Entry<PageId, LockMode> page : held.pages.entrySet()) {
+            if (page.getKey().getTableId() == tableId && !held.covered.contains(page.getKey())) {
+                pids.add(page.getKey());
+                mode = mode.combine(page.getValue());
+            }
+        }
+        if (!acquire(tid, tableId, mode, false, 0).isGranted())
+            return;
+        held.tables.merge(tableId, mode, LockMode::combine);
+        for (PageId pid : pids) {
+            // covered before it is released, so the page stays locked throughout
+            held.covered.add(pid);
+            release(tid, pid);
+        }
+        held.pageLocks.remove(tableId);
+        metrics.recordEscalation();
+    }
+
+    /**
+     * @return true if the transaction was wounded under wound-wait: it is refused every lock,
+     * even one it holds already, until it aborts
+     */
+    private boolean isWounded(TransactionId tid) {
+        return !wounded.isEmpty() && wounded.contains(tid);
+    }
+
+    /**
+     * Grant a lock on a page or table, waiting for it if asked to. A request that does not wait
+     * and is not granted at once counts as TIMED_OUT.
+     */
+    private LockOutcome acquire(TransactionId tid, Object resource, LockMode mode, boolean wait, long deadline) {
+        if (isWounded(tid))
+            return LockOutcome.ABORTED;
+        Stripe stripe = stripeOf(resource);
+        Waiter waiter;
+        synchronized (stripe) {
+            ResourceLock lock = stripe.lockOf(resource);
+            if (!wait)
+                return lock.tryAcquire(tid, mode) ? LockOutcome.GRANTED : LockOutcome.TIMED_OUT;
+            waiter = lock.enqueue(tid, mode);
+        }
+        if (waiter == null)
+            return LockOutcome.GRANTED;
+        switch (deadlockPolicy) {
+            case WAIT_DIE:
+                waitOrDie(waiter);
+                break;
+            case WOUND_WAIT:
+                woundOrWait(waiter);
+                break;
+            default:
+                detectDeadlock(waiter);
+        }
+        boolean granted = waiter.lock.await(waiter, deadline);
+        synchronized (waitsFor) {
+            waitsFor.remove(tid, waiter);
+        }
+        if (granted)
+            return LockOutcome.GRANTED;
+        return waiter.aborted ? LockOutcome.ABORTED : LockOutcome.TIMED_OUT;
+    }
+
+    /**
+     * Add a new waiter to the wait-for graph and break any cycle it closes by aborting the
+     * youngest transaction on the cycle, which may be the new waiter itself.
+     */
+    private void detectDeadlock(Waiter waiter) {
+        synchronized (waitsFor) {
+            waitsFor.put(waiter.tid, waiter);
+            Deque<TransactionId> path = new ArrayDeque<>();
+            if (!findCycle(waiter.tid, waiter.tid, path, new HashSet<>()))
+                return;
+            TransactionId victim = Collections.max(path, (a, b) -> a.equals(b) ? 0 : a.isOlderThan(b) ? -1 : 1);
+            waitsFor.remove(victim).abort();
+            metrics.recordDeadlock();
+        }
+    }
+
+    /**
+     * Add a new waiter to the wait-for graph, and have it give up at once if it would wait for an
+     * older transaction.
+     */
+    private void waitOrDie(Waiter waiter) {
+        synchronized (waitsFor) {
+            waitsFor.put(waiter.tid, waiter);
+            for (TransactionId blocker : waiter.lock.blockersOf(waiter)) {
+                if (blocker.isOlderThan(waiter.tid)) {
+                    waiter.abort();
+                    return;
+                }
+            }
         }
+    }
+
+    /**
+     * Add a new waiter to the wait-for graph and wound the younger transactions it would wait
+     * for. The waiter gives up at once if its own transaction was wounded in the meantime.
+     */
+    private void woundOrWait(Waiter waiter) {
+        synchronized (waitsFor) {
+            waitsFor.put(waiter.tid, waiter);
+            if (wounded.contains(waiter.tid)) {
+                waiter.abort();
+                return;
+            }
+            for (TransactionId blocker : waiter.lock.blockersOf(waiter)) {
+                if (waiter.tid.isOlderThan(blocker) && wounded.add(blocker)) {
+                    Waiter blocked = waitsFor.get(blocker);
+                    if (blocked != null)
+                        blocked.abort();
+                }
+            }
+        }
+    }
+
+    /**
+     * Depth-first search of the wait-for graph for a path from tid back to start. Must be called
+     * with the waitsFor monitor held.
+     *
+     * @param path the transactions on the path so far; holds the cycle if one is found
+     * @return true if a cycle was found
+     */
+    private boolean findCycle(TransactionId start, TransactionId tid, Deque<TransactionId> path,
+                              Set<TransactionId> visited) {
+        Waiter waiter = waitsFor.get(tid);
+        if (waiter == null || !visited.add(tid))
+            return false;
+        path.addLast(tid);
+        for (TransactionId blocker : waiter.lock.blockersOf(waiter)) {
+            if (blocker.equals(start) || findCycle(start, blocker, path, visited))
+                return true;
+        }
+        path.removeLast();
         return false;
+    }
+
+    /**
+     * @return the lock and transaction counters of this lock manager
+     */
+    public TransactionMetrics getMetrics() {
+        return metrics;
+    }
+
+    public boolean holdsLock(TransactionId tid, PageId p) {
+        HeldLocks held = tpMap.get(tid);
+        if (held == null)
+            return false;
+        LockMode tableMode = held.tables.get(p.getTableId());
+        return held.pages.containsKey(p) || (tableMode != null && tableMode.covers(LockMode.S));
         //        if (lockMap.containsKey(p)) {
 //            ConcurrentHashMap<TransactionId, LockType> map = lockMap.get(p);
 //            return map.containsKey(tid);
@@ -60,30 +388,39 @@ public class LockManager {
      * Get the pages that have EX_LOCK.
      */
     public Set<PageId> getEXLockPages(TransactionId tid) {
-        Set<PageId> pageIds = tpMap.get(tid);
-        return pageIds.stream().filter(pageId ->
-                ppMap.get(pageId).ex_tid != null
-        ).collect(Collectors.toSet());
+        Set<PageId> pageIds = new HashSet<>();
+        HeldLocks held = tpMap.get(tid);
+        if (held != null) {
+            held.pages.forEach((pageId, mode) -> {
+                if (mode == LockMode.X)
+                    pageIds.add(pageId);
+            });
+        }
+        return pageIds;
     }
 
     /**
      * Get all PageId in the lockManager.
      */
     public Set<PageId> getPageIds(TransactionId tid) {
-        return tpMap.getOrDefault(tid, new HashSet<>());
+        HeldLocks held = tpMap.get(tid);
+        return held == null ? Collections.emptySet() : held.pages.keySet();
     }
 
     /**
      * Release the locks of a transaction on all the pages
      */
     public void releaseAllLocks(TransactionId tid) {
-        Set<PageId> pageIds = tpMap.get(tid);
-        if (pageIds != null) {
+        wounded.remove(tid);
+        HeldLocks held = tpMap.remove(tid);
+        if (held != null) {
             //Have to add this, otherwise a NullPointerException will be raised.
-            for (PageId pid : pageIds) {
-                PageLock pageLock = ppMap.get(pid);
-                pageLock.releaseLock(tid);
+            for (PageId pid : held.pages.keySet()) {
+                if (!held.covered.contains(pid))
+                    release(tid, pid);
             }
+            for (Integer tableId : held.tables.keySet())
+                release(tid, tableId);
         }
         //        Set<PageId> sets = lockMap.keySet();
 //        for (PageId pid : sets) {
@@ -95,9 +432,13 @@ public class LockManager {
      * Release the locks on one page
      */
     public void releaseLockOnPage(TransactionId tid, PageId pid) {
-        PageLock pageLock = ppMap.get(pid);
-        pageLock.releaseLock(tid);
-        tpMap.get(tid).remove(pid);
+        HeldLocks held = tpMap.get(tid);
+        if (held != null) {
+            if (held.pages.remove(pid) == null || held.covered.remove(pid))
+                return;
+            held.pageLocks.computeIfPresent(pid.getTableId(), (tableId, n) -> n - 1);
+        }
+        release(tid, pid);
         //        if (holdsLock(tid, pid)) {
 //            ConcurrentHashMap<TransactionId, LockType> map = lockMap.get(pid);
 //            map.remove(tid);
@@ -110,53 +451,257 @@ public class LockManager {
 //        }
     }
 
-    private static class PageLock {
-        private volatile TransactionId ex_tid; // The current transaction which holds an EX_LOCK
-        private final Set<TransactionId> shares; // The current transactions holding SHARED_LOCKS
-        private final PageId pageId;
-
-        public PageLock(PageId pid) {
-            this.pageId = pid;
-            this.shares = new HashSet<>();
+    private void release(TransactionId tid, Object resource) {
+        Stripe stripe = stripeOf(resource);
+        synchronized (stripe) {
+            ResourceLock lock = stripe.locks.get(resource);
+            if (lock != null) {
+                lock.releaseLock(tid);
+                stripe.removeIfIdle(lock);
+            }
         }
+    }
+
+    /**
+     * The locks one transaction holds.
+     */
+    private static class HeldLocks {
+        /**
+         * The pages the transaction may access and how, by a page lock or by its table lock.
+         * Pages only read under a table lock are left out: the table lock covers them, and commit
+         * and abort only need the pages that were written.
+         */
+        private final Map<PageId, LockMode> pages = new ConcurrentHashMap<>();
+        /**
+         * The pages written under a table lock only, which have no page lock to release.
+         */
+        private final Set<PageId> covered = ConcurrentHashMap.newKeySet();
+        private final Map<Integer, LockMode> tables = new ConcurrentHashMap<>();
+        /**
+         * The number of page locks on each table, counted for escalation.
+         */
+        private final Map<Integer, Integer> pageLocks = new ConcurrentHashMap<>();
 
-        public boolean sharedLock(TransactionId tid) {
-            if (ex_tid == null) {
-                // No EX_LOCK on this page
-                shares.add(tid);
+        boolean covers(PageId pid, LockMode mode) {
+            LockMode held = pages.get(pid);
+            if (held != null && held.covers(mode))
                 return true;
+            // writes still go through cover(), so that the page is recorded
+            LockMode table = mode == LockMode.S ? tables.get(pid.getTableId()) : null;
+            return table != null && table.covers(mode);
+        }
+
+        void cover(PageId pid, LockMode mode) {
+            if (mode == LockMode.S)
+                return;
+            LockMode held = pages.putIfAbsent(pid, mode);
+            if (held == null)
+                covered.add(pid);
+            else
+                pages.put(pid, held.combine(mode));
+        }
+    }
+
+    /**
+     * One stripe of the lock table: the locks of the resources whose keys hash to it. The stripe's
+     * monitor is the latch guarding the map and the state of every ResourceLock in it.
+     */
+    private static class Stripe {
+        private final Map<Object, ResourceLock> locks = new HashMap<>();
+
+        /**
+         * @return the lock of the resource, added to the table if nobody holds or waits for it yet
+         */
+        ResourceLock lockOf(Object resource) {
+            ResourceLock lock = locks.get(resource);
+            if (lock == null) {
+                lock = new ResourceLock(resource, this);
+                locks.put(resource, lock);
             }
-            return Objects.equals(tid, ex_tid);
+            return lock;
         }
 
-        public boolean exclusiveLock(TransactionId tid) {
-            if (ex_tid == null && shares.size() == 0) {
-                ex_tid = tid;
-                return true;
+        void removeIfIdle(ResourceLock lock) {
+            if (lock.isIdle())
+                locks.remove(lock.resource, lock);
+        }
+    }
+
+    /**
+     * A request waiting in a ResourceLock queue. It is granted by the thread that releases the
+     * lock, or aborted by deadlock detection; either one then unparks the waiting thread.
+     */
+    private static class Waiter {
+        private final TransactionId tid;
+        private final LockMode mode;
+        private final ResourceLock lock;
+        private final Thread thread;
+        private volatile boolean granted;
+        private volatile boolean aborted;
+
+        Waiter(TransactionId tid, LockMode mode, ResourceLock lock) {
+            this.tid = tid;
+            this.mode = mode;
+            this.lock = lock;
+            this.thread = Thread.currentThread();
+        }
+
+        void abort() {
+            aborted = true;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * The lock on one page or table. All its state is guarded by the latch of its stripe.
+     */
+    private static class ResourceLock {
+        private final Map<TransactionId, LockMode> holders; // The current transactions and their modes
+        private final Deque<Waiter> waiters; // FIFO, except that upgrades go first
+        private final Object resource;
+        private final Stripe stripe;
+
+        public ResourceLock(Object resource, Stripe stripe) {
+            this.resource = resource;
+            this.stripe = stripe;
+            this.holders = new HashMap<>();
+            this.waiters = new ArrayDeque<>();
+        }
+
+        /**
+         * @return the mode the transaction would hold after being granted the requested one
+         */
+        private LockMode wanted(TransactionId tid, LockMode mode) {
+            LockMode held = holders.get(tid);
+            return held == null ? mode : held.combine(mode);
+        }
+
+        private boolean compatible(TransactionId tid, LockMode mode) {
+            LockMode wanted = wanted(tid, mode);
+            // update the SHARED_LOCK to EX_LOCK if tid is the only reader
+            for (Map.Entry<TransactionId, LockMode> holder : holders.entrySet()) {
+                if (!holder.getKey().equals(tid) && !wanted.isCompatibleWith(holder.getValue()))
+                    return false;
             }
-            if (ex_tid == null && shares.size() == 1 && shares.contains(tid)) {
-                // update the SHARED_LOCK to EX_LOCK
-                shares.remove(tid);
-                ex_tid = tid;
+            return true;
+        }
+
+        private void grant(TransactionId tid, LockMode mode) {
+            holders.put(tid, wanted(tid, mode));
+        }
+
+        private boolean holds(TransactionId tid) {
+            return holders.containsKey(tid);
+        }
+
+        private boolean isIdle() {
+            return holders.isEmpty() && waiters.isEmpty();
+        }
+
+        public boolean tryAcquire(TransactionId tid, LockMode mode) {
+            // holders may always go ahead: the waiters are waiting for them anyway
+            if (compatible(tid, mode) && (waiters.isEmpty() || holds(tid))) {
+                grant(tid, mode);
                 return true;
             }
-            return Objects.equals(tid, ex_tid);
+            return false;
+        }
+
+        /**
+         * Grant the lock at once if possible, otherwise queue a request for it. Must be called
+         * with the stripe latch held.
+         *
+         * @return the queued request, or null if the lock was granted
+         */
+        public Waiter enqueue(TransactionId tid, LockMode mode) {
+            if (tryAcquire(tid, mode))
+                return null;
+            Waiter waiter = new Waiter(tid, mode, this);
+            if (holds(tid))
+                waiters.addFirst(waiter); // an upgrade, nobody else can be granted before it
+            else
+                waiters.addLast(waiter);
+            return waiter;
+        }
+
+        /**
+         * Park until the queued request is granted, aborted or times out.
+         *
+         * @return true if the lock was granted
+         */
+        public boolean await(Waiter waiter, long deadlineNanos) {
+            while (!waiter.granted && !waiter.aborted) {
+                long remaining = deadlineNanos - System.nanoTime();
+                if (remaining <= 0 || Thread.currentThread().isInterrupted())
+                    break;
+                LockSupport.parkNanos(this, remaining);
+            }
+            synchronized (stripe) {
+                if (waiter.granted)
+                    return true;
+                waiters.remove(waiter);
+                // the requests behind this one may be grantable now
+                grantWaiters();
+                stripe.removeIfIdle(this);
+                return false;
+            }
+        }
+
+        /**
+         * @return the transactions the given queued request waits for: the holders of this lock
+         * in a conflicting mode, and the requests queued ahead of it. Empty if the request is not
+         * queued any more.
+         */
+        public List<TransactionId> blockersOf(Waiter waiter) {
+            List<TransactionId> blockers = new ArrayList<>();
+            synchronized (stripe) {
+                collectBlockers(waiter, blockers);
+            }
+            return blockers;
+        }
+
+        private void collectBlockers(Waiter waiter, List<TransactionId> blockers) {
+            if (!waiters.contains(waiter))
+                return;
+            LockMode wanted = wanted(waiter.tid, waiter.mode);
+            for (Map.Entry<TransactionId, LockMode> holder : holders.entrySet()) {
+                if (!holder.getKey().equals(waiter.tid) && !wanted.isCompatibleWith(holder.getValue()))
+                    blockers.add(holder.getKey());
+            }
+            for (Waiter ahead : waiters) {
+                if (ahead == waiter)
+                    break;
+                if (!ahead.tid.equals(waiter.tid))
+                    blockers.add(ahead.tid);
+            }
+        }
+
+        /**
+         * Grant the waiting requests at the head of the queue that are compatible with the
+         * current holders. Must be called with the stripe latch held.
+         */
+        private void grantWaiters() {
+            while (!waiters.isEmpty()) {
+                Waiter waiter = waiters.peekFirst();
+                if (!compatible(waiter.tid, waiter.mode))
+                    return;
+                waiters.pollFirst();
+                grant(waiter.tid, waiter.mode);
+                waiter.granted = true;
+                LockSupport.unpark(waiter.thread);
+            }
         }
 
-        public synchronized void releaseLock(TransactionId tid) {
-            if (ex_tid == null)
-                shares.remove(tid);
-            else if (Objects.equals(ex_tid, tid))
-                ex_tid = null;
+        public void releaseLock(TransactionId tid) {
+            holders.remove(tid);
+            grantWaiters();
         }
 
         // Debugging Info, used in LogFiles
         @Override
         public String toString() {
-            if (ex_tid != null) {
-                return pageId.toString() + ex_tid.getId();
-            } else {
-                return pageId.toString();
+            synchronized (stripe) {
+                return resource.toString() + holders;
             }
         }
     }
@@ -0,0 +1,66 @@
+package simpledb.transaction;
+
+import simpledb.common.Permissions;
+
+/**
+ * The modes of multi-granularity locking. Pages are locked in S or X mode;
+ * a table is locked in any mode, where IS and IX announce S and X locks on
+ * some of its pages, and SIX is S on the whole table together with IX.
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    private static final boolean[][] COMPATIBLE = {
+            //         IS     IX     S      SIX    X
+            /* IS  */ {true,  true,  true,  true,  false},
+            /* IX  */ {true,  true,  false, false, false},
+            /* S   */ {true,  false, true,  false, false},
+            /* SIX */ {true,  false, false, false, false},
+            /* X   */ {false, false, false, false, false},
+    };
+
+    /**
+     * @return the page lock mode needed for the given permissions, S or X
+     */
+    public static LockMode of(Permissions perm) {
+        return perm == Permissions.READ_WRITE ? X : S;
+    }
+
+    /**
+     * @return true if two transactions may hold this mode and the other one
+     * on the same resource at once
+     */
+    public boolean isCompatibleWith(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return the weakest mode that grants everything this mode and the
+     * other one grant
+     */
+    public LockMode combine(LockMode other) {
+        if (this == other || other == IS)
+            return this;
+        if (this == IS)
+            return other;
+        if (this == X || other == X)
+            return X;
+        // two different modes of IX, S and SIX
+        return SIX;
+    }
+
+    /**
+     * @return true if holding this mode grants everything the other mode does
+     */
+    public boolean covers(LockMode other) {
+        return combine(other) == this;
+    }
+
+    /**
+     * @return the mode to hold on the table before locking one of its pages
+     * in this mode
+     */
+    public LockMode intention() {
+        return this == IS || this == S ? IS : IX;
+    }
+}
@@ -0,0 +1,28 @@
+package simpledb.transaction;
+
+/**
+ * How a LockManager request that may wait ended. A request that is not
+ * granted either ran out of time or was refused by the deadlock policy;
+ * the two are counted apart in {@link TransactionMetrics}.
+ */
+public enum LockOutcome {
+    /**
+     * The lock was granted.
+     */
+    GRANTED,
+    /**
+     * The timeout expired, or the waiting thread was interrupted, before
+     * the lock could be granted.
+     */
+    TIMED_OUT,
+    /**
+     * The transaction was chosen to abort by the deadlock policy: it was
+     * the victim of a deadlock, died under wait-die, or was wounded under
+     * wound-wait.
+     */
+    ABORTED;
+
+    public boolean isGranted() {
+        return this == GRANTED;
+    }
+}
@@ -7,19 +7,49 @@ import java.io.*;
 /**
  * Transaction encapsulates information about the state of
  * a transaction and manages transaction commit / abort.
+ * <p>
+ * A read-only transaction reads a snapshot of the database as of its start,
+ * without taking locks, so it neither waits for writers nor holds them up.
  */
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly whether this is a read-only snapshot transaction
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Creates a transaction that restarts one that aborted. It keeps the
+     * timestamp of the aborted transaction, so that under wait-die or
+     * wound-wait it is not aborted again and again as the youngest.
+     *
+     * @param aborted the transaction to restart
+     * @see TransactionId#TransactionId(TransactionId)
+     */
+    public Transaction(Transaction aborted) {
+        tid = new TransactionId(aborted.getId());
+        this.readOnly = aborted.readOnly;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly) {
+            // nothing to log or roll back
+            Database.getBufferPool().beginSnapshot(tid);
+            return;
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -31,6 +61,10 @@ public class Transaction {
         return tid;
     }
 
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     /** Finish the transaction */
     public void commit() throws IOException {
         transactionComplete(false);
@@ -45,8 +79,9 @@ public class Transaction {
     public void transactionComplete(boolean abort) throws IOException {
 
         if (started) {
+            long start = System.nanoTime();
             //write abort log record and rollback transaction
-            if (abort) {
+            if (abort && !readOnly) {
                 Database.getLogFile().logAbort(tid); //does rollback too
             } 
 
@@ -54,10 +89,12 @@ public class Transaction {
             Database.getBufferPool().transactionComplete(tid, !abort); // release locks
 
             // write commit log record
-            if (!abort) {
+            if (!abort && !readOnly) {
             	Database.getLogFile().logCommit(tid);
             }
 
+            Database.getBufferPool().getTransactionMetrics().recordCompletion(System.nanoTime() - start, !abort);
+
             //setting this here means we could possibly write multiple abort records -- OK?
             started = false;
         }
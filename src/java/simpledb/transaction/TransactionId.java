@@ -12,15 +12,46 @@ public class TransactionId implements Serializable {
 
     static final AtomicLong counter = new AtomicLong(0);
     final long myid;
+    final long timestamp;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
+        timestamp = myid;
+    }
+
+    /**
+     * Creates the id of a transaction that restarts one that aborted. The new
+     * transaction has an id of its own but keeps the timestamp of the prior
+     * one, so it grows older with each restart instead of starting over as
+     * the youngest.
+     *
+     * @param prior the id of the aborted transaction
+     */
+    public TransactionId(TransactionId prior) {
+        myid = counter.getAndIncrement();
+        timestamp = prior.timestamp;
     }
 
     public long getId() {
         return myid;
     }
 
+    /**
+     * @return the timestamp deadlock prevention orders transactions by: the
+     * id of the first transaction of a chain of restarts
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return true if this transaction is older than the other one, by
+     * timestamp and then by id
+     */
+    public boolean isOlderThan(TransactionId other) {
+        return timestamp != other.timestamp ? timestamp < other.timestamp : myid < other.myid;
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
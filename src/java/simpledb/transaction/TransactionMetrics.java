@@ -0,0 +1,139 @@
+package simpledb.transaction;
+
+import simpledb.common.LatencyHistogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * TransactionMetrics counts lock requests, lock waits and transaction
+ * outcomes for one LockManager. Counters are striped LongAdders and
+ * latencies go into {@link LatencyHistogram}s, so recording never blocks.
+ *
+ * @Threadsafe
+ */
+public class TransactionMetrics implements TransactionMetricsMXBean {
+
+    private final LongAdder lockRequests = new LongAdder();
+    private final LongAdder lockConflicts = new LongAdder();
+    private final LongAdder lockTimeouts = new LongAdder();
+    private final LongAdder deadlocks = new LongAdder();
+    private final LongAdder deadlockAborts = new LongAdder();
+    private final LongAdder escalations = new LongAdder();
+    private final LatencyHistogram lockWaits = new LatencyHistogram();
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder aborts = new LongAdder();
+    private final LatencyHistogram commitLatency = new LatencyHistogram();
+
+    void recordLockRequest(boolean granted) {
+        lockRequests.increment();
+        if (!granted)
+            lockConflicts.increment();
+    }
+
+    void recordDeadlock() {
+        deadlocks.increment();
+    }
+
+    void recordEscalation() {
+        escalations.increment();
+    }
+
+    /**
+     * Record a lock request that was not granted at once.
+     *
+     * @param nanos   how long the requester waited
+     * @param outcome how the wait ended
+     */
+    public void recordLockWait(long nanos, LockOutcome outcome) {
+        lockWaits.record(nanos);
+        if (outcome == LockOutcome.TIMED_OUT)
+            lockTimeouts.increment();
+        else if (outcome == LockOutcome.ABORTED)
+            deadlockAborts.increment();
+    }
+
+    /**
+     * Record a completed transaction.
+     *
+     * @param nanos  how long the commit or abort took
+     * @param commit whether the transaction committed
+     */
+    public void recordCompletion(long nanos, boolean commit) {
+        if (commit) {
+            commits.increment();
+            commitLatency.record(nanos);
+        } else {
+            aborts.increment();
+        }
+    }
+
+    @Override
+    public long getLockRequests() {
+        return lockRequests.sum();
+    }
+
+    @Override
+    public long getLockConflicts() {
+        return lockConflicts.sum();
+    }
+
+    @Override
+    public long getLockWaits() {
+        return lockWaits.getCount();
+    }
+
+    @Override
+    public long getLockTimeouts() {
+        return lockTimeouts.sum();
+    }
+
+    @Override
+    public long getDeadlocks() {
+        return deadlocks.sum();
+    }
+
+    @Override
+    public long getDeadlockAborts() {
+        return deadlockAborts.sum();
+    }
+
+    @Override
+    public long getEscalations() {
+        return escalations.sum();
+    }
+
+    @Override
+    public double getLockWaitMeanMicros() {
+        return lockWaits.getMeanMicros();
+    }
+
+    @Override
+    public double getLockWaitP99Micros() {
+        return lockWaits.getPercentileMicros(0.99);
+    }
+
+    @Override
+    public double getLockWaitMaxMicros() {
+        return lockWaits.getMaxMicros();
+    }
+
+    @Override
+    public long getCommits() {
+        return commits.sum();
+    }
+
+    @Override
+    public long getAborts() {
+        return aborts.sum();
+    }
+
+    @Override
+    public double getCommitLatencyMeanMicros() {
+        return commitLatency.getMeanMicros();
+    }
+
+    @Override
+    public double getCommitLatencyP99Micros() {
+        return commitLatency.getPercentileMicros(0.99);
+    }
+}
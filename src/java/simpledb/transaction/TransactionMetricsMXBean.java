@@ -0,0 +1,61 @@
+package simpledb.transaction;
+
+/**
+ * Management interface of {@link TransactionMetrics}, registered by the
+ * Database under the name {@code simpledb:type=Transactions}. Counters cover
+ * the lifetime of the lock manager; latencies are in microseconds.
+ */
+public interface TransactionMetricsMXBean {
+
+    /**
+     * @return the number of LockManager.tryLock() calls
+     */
+    long getLockRequests();
+
+    /**
+     * @return the number of tryLock() calls refused because of a conflict
+     */
+    long getLockConflicts();
+
+    /**
+     * @return the number of page requests that had to wait for a lock
+     */
+    long getLockWaits();
+
+    /**
+     * @return the number of page requests that gave up waiting for a lock
+     * because the timeout expired
+     */
+    long getLockTimeouts();
+
+    /**
+     * @return the number of deadlocks broken by aborting a waiting transaction
+     */
+    long getDeadlocks();
+
+    /**
+     * @return the number of page requests refused by the deadlock policy:
+     * deadlock victims, and transactions that died or were wounded
+     */
+    long getDeadlockAborts();
+
+    /**
+     * @return the number of times a transaction's page locks on a table were
+     * replaced by a table lock
+     */
+    long getEscalations();
+
+    double getLockWaitMeanMicros();
+
+    double getLockWaitP99Micros();
+
+    double getLockWaitMaxMicros();
+
+    long getCommits();
+
+    long getAborts();
+
+    double getCommitLatencyMeanMicros();
+
+    double getCommitLatencyP99Micros();
+}
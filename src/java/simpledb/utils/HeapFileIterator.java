@@ -3,6 +3,7 @@ package simpledb.utils;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Permissions;
+import simpledb.execution.Predicate;
 import simpledb.storage.*;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
@@ -12,24 +13,88 @@ import java.util.NoSuchElementException;
 
 public class HeapFileIterator extends AbstractDbFileIterator {
 
+    /**
+     * Number of pages read in order before read-ahead kicks in, so that
+     * scans touching only a page or two do not read more than they need.
+     */
+    private static final int SEQUENTIAL_THRESHOLD = 2;
+    private static final int MIN_READ_AHEAD = 4;
+    private static final int MAX_READ_AHEAD = 64;
+
     private final TransactionId tid;
     private final HeapFile heapFile;
+    private final Predicate predicate; // tuples that fail it are skipped, or null
     private HeapPage heapPage;
     private int pgNo;
     private Iterator<Tuple> tupleIterator = null;
 
+    // Adaptive read-ahead state: the window doubles every time the scan
+    // catches up with the pages already requested, up to MAX_READ_AHEAD.
+    private int lastPgNo = -1;
+    private int sequentialRun = 0;
+    private int readAheadWindow = MIN_READ_AHEAD;
+    private int readAheadEnd = 0; // pages below this have been requested
+    private final boolean readAhead;
+    private ScanRing ring; // frames of a scan too large for the pool, or null
+
     public HeapFileIterator(TransactionId tid, HeapFile heapFile) {
+        this(tid, heapFile, null);
+    }
+
+    public HeapFileIterator(TransactionId tid, HeapFile heapFile, Predicate predicate) {
         this.tid = tid;
         this.heapFile = heapFile;
+        this.predicate = predicate;
+        this.readAhead = heapFile.supportsReadAhead();
     }
 
     @Override
     public void open() throws DbException, TransactionAbortedException {
         //Since we have implemented iterator for tuples on one page in HeapPage.java,
         //we use it here in HeapFileIterator.
+        ring = Database.getBufferPool().newScanRing(heapFile.numPages(), heapFile.getPageSize());
+        tupleIterator = fetchPage(pgNo).iterator(predicate);
+    }
+
+    private HeapPage fetchPage(int pgNo) throws DbException, TransactionAbortedException {
+        if (pgNo == lastPgNo + 1) {
+            sequentialRun++;
+        } else {
+            sequentialRun = 1;
+            readAheadWindow = Math.min(MIN_READ_AHEAD, maxReadAhead());
+            readAheadEnd = 0;
+        }
+        lastPgNo = pgNo;
+        // Issue the next read-ahead when the scan enters the second half of
+        // the previous one, so that it is done before the scan gets there.
+        if (readAhead && sequentialRun >= SEQUENTIAL_THRESHOLD && pgNo + readAheadWindow / 2 >= readAheadEnd) {
+            int start = Math.max(pgNo + 1, readAheadEnd);
+            if (start < heapFile.numPages()) {
+                if (readAheadEnd > 0)
+                    readAheadWindow = Math.min(readAheadWindow * 2, maxReadAhead());
+                Database.getBufferPool().readAhead(heapFile, start, readAheadWindow, ring);
+                readAheadEnd = start + readAheadWindow;
+            }
+        }
+        unpinCurrentPage();
         HeapPageId pageId = new HeapPageId(heapFile.getId(), pgNo);
-        heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-        tupleIterator = heapPage.iterator();
+        heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY, ring);
+        return heapPage;
+    }
+
+    private void unpinCurrentPage() {
+        if (heapPage != null) {
+            Database.getBufferPool().unpinPage(tid, heapPage.getId());
+            heapPage = null;
+        }
+    }
+
+    /**
+     * Pages read ahead into a scan ring must not push each other out before
+     * the scan gets to them, so the window is limited to half the ring.
+     */
+    private int maxReadAhead() {
+        return ring == null ? MAX_READ_AHEAD : Math.max(1, ring.getCapacity() / 2);
     }
 
 //    public Iterator<Tuple> getTupleIterator(int pgNo) throws TransactionAbortedException, DbException {
@@ -54,9 +119,7 @@ public class HeapFileIterator extends AbstractDbFileIterator {
         while (!tupleIterator.hasNext()) { //If no more tuples on the given page, look for the next one
             pgNo++;
             if (pgNo < heapFile.numPages()) {
-                HeapPageId pageId = new HeapPageId(heapFile.getId(), pgNo);
-                heapPage = (HeapPage) Database.getBufferPool().getPage(tid, pageId, Permissions.READ_ONLY);
-                tupleIterator = heapPage.iterator();
+                tupleIterator = fetchPage(pgNo).iterator(predicate);
             } else {
                 return null;
             }
@@ -91,8 +154,14 @@ public class HeapFileIterator extends AbstractDbFileIterator {
     @Override
     public void close() {
         super.close();
+        unpinCurrentPage();
         tupleIterator = null;
         pgNo = 0;
+        lastPgNo = -1;
+        sequentialRun = 0;
+        readAheadWindow = MIN_READ_AHEAD;
+        readAheadEnd = 0;
+        ring = null;
     }
 
 }
@@ -0,0 +1,786 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+
+import simpledb.common.CachePriority;
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.BufferPool;
+import simpledb.storage.ClockReplacementPolicy;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.Page;
+import simpledb.storage.PageId;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+import simpledb.transaction.TransactionMetrics;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest extends SimpleDbTestBase {
+
+    private static final int ROWS = 20000; // about 40 pages of two int columns
+
+    private static long sumOfFirstColumn(List<List<Integer>> tuples) {
+        long sum = 0;
+        for (List<Integer> tuple : tuples)
+            sum += tuple.get(0);
+        return sum;
+    }
+
+    /**
+     * Unit test for a partitioned BufferPool: several threads scan a table
+     * much larger than the pool, so that every partition keeps evicting.
+     */
+    @Test public void concurrentScansOverPartitions() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+        long expected = sumOfFirstColumn(tuples);
+        Database.resetBufferPool(new BufferPool(8, 4, ClockReplacementPolicy::new));
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread(() -> {
+                try {
+                    TransactionId tid = new TransactionId();
+                    SeqScan scan = new SeqScan(tid, f.getId(), "");
+                    scan.open();
+                    long sum = 0;
+                    int count = 0;
+                    while (scan.hasNext()) {
+                        Tuple t = scan.next();
+                        sum += ((IntField) t.getField(0)).getValue();
+                        count++;
+                    }
+                    scan.close();
+                    Database.getBufferPool().transactionComplete(tid);
+                    assertEquals(ROWS, count);
+                    assertEquals(expected, sum);
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+    }
+
+    private static long scanSum(HeapFile f, int expectedCount) throws Exception {
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, f.getId(), "");
+        scan.open();
+        long sum = 0;
+        int count = 0;
+        while (scan.hasNext()) {
+            sum += ((IntField) scan.next().getField(0)).getValue();
+            count++;
+        }
+        scan.close();
+        Database.getBufferPool().transactionComplete(tid);
+        assertEquals(expectedCount, count);
+        return sum;
+    }
+
+    /**
+     * Unit test for a BufferPool whose HeapFile pages live in off-heap frames.
+     */
+    @Test public void offHeapFrames() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+        long expected = sumOfFirstColumn(tuples);
+        BufferPool bp = Database.resetBufferPool(new BufferPool(8, 2, ClockReplacementPolicy::new, true));
+
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        assertTrue(page.isFrameBacked());
+        bp.transactionComplete(tid);
+
+        // scanning evicts frames over and over; they must be recycled correctly
+        assertEquals(expected, scanSum(f, ROWS));
+        assertEquals(expected, scanSum(f, ROWS));
+
+        // modify a frame-backed page, commit, and read it back
+        tid = new TransactionId();
+        bp.insertTuple(tid, f.getId(), magicTuple());
+        bp.transactionComplete(tid);
+        assertEquals(expected + 12345, scanSum(f, ROWS + 1));
+    }
+
+    private static Tuple magicTuple() {
+        Tuple t = new Tuple(Utility.getTupleDesc(2));
+        t.setField(0, new IntField(12345));
+        t.setField(1, new IntField(0));
+        return t;
+    }
+
+    private static void awaitNoDirtyPages(BufferPool bp) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (bp.getNumDirtyPages() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, bp.getNumDirtyPages());
+    }
+
+    private static boolean onDisk(HeapFile f, Tuple t) {
+        HeapPage page = (HeapPage) f.readPage(t.getRecordId().getPageId());
+        Iterator<Tuple> it = page.iterator();
+        while (it.hasNext()) {
+            if (it.next().getField(0).equals(t.getField(0)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Unit test for the background writer: uncommitted pages it writes out
+     * are undone when the transaction aborts.
+     */
+    @Test public void backgroundWriterThenAbort() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+        long expected = sumOfFirstColumn(tuples);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        Transaction txn = new Transaction();
+        txn.start();
+        Tuple t = magicTuple();
+        bp.insertTuple(txn.getId(), f.getId(), t);
+        assertEquals(1, bp.getNumDirtyPages());
+
+        bp.startBackgroundWriter(0, 1000);
+        awaitNoDirtyPages(bp);
+        bp.stopBackgroundWriter();
+        assertTrue(onDisk(f, t));
+
+        txn.abort();
+        assertFalse(onDisk(f, t));
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(expected, scanSum(f, ROWS));
+    }
+
+    /**
+     * Unit test for the background writer: a commit after write-ahead keeps
+     * the change.
+     */
+    @Test public void backgroundWriterThenCommit() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+        long expected = sumOfFirstColumn(tuples);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.startBackgroundWriter(0, 1000);
+
+        Transaction txn = new Transaction();
+        txn.start();
+        Tuple t = magicTuple();
+        bp.insertTuple(txn.getId(), f.getId(), t);
+        awaitNoDirtyPages(bp);
+        txn.commit();
+        bp.stopBackgroundWriter();
+
+        assertTrue(onDisk(f, t));
+        assertEquals(expected + 12345, scanSum(f, ROWS + 1));
+    }
+
+    /**
+     * Unit test for the background writer: a page written ahead of its
+     * transaction is not evicted like a clean page, and still rolls back.
+     */
+    @Test public void writtenAheadPagesStayResident() throws Exception {
+        CountingHeapFile f = new CountingHeapFile(SystemTestUtil.createRandomHeapFile(2, 100, null, null));
+        Database.getCatalog().addTable(f);
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        BufferPool bp = Database.resetBufferPool(new BufferPool(3, 1, ClockReplacementPolicy::new));
+
+        Transaction txn = new Transaction();
+        txn.start();
+        Tuple t = magicTuple();
+        bp.insertTuple(txn.getId(), f.getId(), t);
+        bp.startBackgroundWriter(0, 1000);
+        awaitNoDirtyPages(bp);
+        bp.stopBackgroundWriter();
+        assertTrue(onDisk(f, t));
+
+        int reads = f.pageReads.get();
+        TransactionId reader = new TransactionId();
+        for (int i = 0; i < 6; i++) {
+            PageId pid = new HeapPageId(other.getId(), i);
+            bp.getPage(reader, pid, Permissions.READ_ONLY);
+            bp.unpinPage(reader, pid);
+        }
+        bp.transactionComplete(reader);
+        bp.getPage(txn.getId(), t.getRecordId().getPageId(), Permissions.READ_ONLY);
+        assertEquals(reads, f.pageReads.get());
+
+        txn.abort();
+        assertFalse(onDisk(f, t));
+    }
+
+    /**
+     * A HeapFile that counts the pages read one at a time.
+     */
+    private static class CountingHeapFile extends HeapFile {
+        private final AtomicInteger pageReads = new AtomicInteger();
+
+        CountingHeapFile(HeapFile f) {
+            super(f.getFile(), f.getTupleDesc());
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            pageReads.incrementAndGet();
+            return super.readPage(pid);
+        }
+    }
+
+    /**
+     * Unit test for read-ahead: prefetched pages are served from the pool and
+     * a sequential scan still sees every tuple.
+     */
+    @Test public void prefetchPages() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile created = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+        CountingHeapFile f = new CountingHeapFile(created);
+        Database.getCatalog().addTable(f);
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+
+        bp.prefetchPages(f, 0, 8);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 8; i++)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        assertEquals(0, f.pageReads.get());
+
+        assertEquals(sumOfFirstColumn(tuples), scanSum(f, ROWS));
+    }
+
+    /**
+     * A HeapFile whose multi-page reads wait, after reading, until they are
+     * told to go on.
+     */
+    private static class PausingHeapFile extends HeapFile {
+        private final CountDownLatch read = new CountDownLatch(1);
+        private final CountDownLatch written = new CountDownLatch(1);
+        private final CountDownLatch resume = new CountDownLatch(1);
+        private volatile boolean pauseWrites; // of pages holding tuples
+
+        PausingHeapFile(HeapFile f) {
+            super(f.getFile(), f.getTupleDesc());
+        }
+
+        @Override
+        public List<HeapPage> readPages(int firstPgNo, int count) throws IOException {
+            List<HeapPage> pages = super.readPages(firstPgNo, count);
+            read.countDown();
+            try {
+                resume.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return pages;
+        }
+
+        @Override
+        public void writePage(Page page) throws IOException {
+            super.writePage(page);
+            if (pauseWrites && ((HeapPage) page).iterator().hasNext()) {
+                written.countDown();
+                try {
+                    resume.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * Unit test for read-ahead overlapping the abort of a transaction whose
+     * page was stolen: the prefetched copy of the page is not staged.
+     */
+    @Test public void prefetchDuringAbortOfStolenPage() throws Exception {
+        PausingHeapFile f = new PausingHeapFile(SystemTestUtil.createRandomHeapFile(2, 0, null, null));
+        Database.getCatalog().addTable(f);
+        BufferPool bp = Database.resetBufferPool(new BufferPool(2, 1, ClockReplacementPolicy::new));
+
+        Transaction txn = new Transaction();
+        txn.start();
+        for (int i = 0; i < 1500; i++) // about three pages, so page 0 is stolen
+            bp.insertTuple(txn.getId(), f.getId(), magicTuple());
+        // the uncommitted page 0 is on disk and no longer in the pool
+        assertEquals(0, ((HeapPage) f.readPage(new HeapPageId(f.getId(), 0))).getNumEmptySlots());
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread prefetch = new Thread(() -> {
+            try {
+                bp.prefetchPages(f, 0, 1);
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        prefetch.start();
+        f.read.await();
+        txn.abort();
+        f.resume.countDown();
+        prefetch.join();
+        assertNull(failure.get());
+
+        assertEquals(0, scanSum(f, 0));
+    }
+
+    /**
+     * Unit test for STEAL writing its victim outside the pool monitor, and
+     * for the abort that follows rolling the stolen page back.
+     */
+    @Test public void stealWritesOutsidePoolMonitor() throws Exception {
+        PausingHeapFile f = new PausingHeapFile(SystemTestUtil.createRandomHeapFile(2, 0, null, null));
+        Database.getCatalog().addTable(f);
+        BufferPool bp = Database.resetBufferPool(new BufferPool(2, 1, ClockReplacementPolicy::new));
+        f.pauseWrites = true;
+
+        Transaction txn = new Transaction();
+        txn.start();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread inserter = new Thread(() -> {
+            try {
+                for (int i = 0; i < 1500; i++) // about three pages, so page 0 is stolen
+                    bp.insertTuple(txn.getId(), f.getId(), magicTuple());
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        inserter.start();
+        assertTrue(f.written.await(10, TimeUnit.SECONDS));
+
+        Thread monitor = new Thread(() -> {
+            synchronized (bp) {
+                // the pool monitor is free while the stolen page is written
+            }
+        });
+        monitor.start();
+        try {
+            monitor.join(5000);
+            assertFalse(monitor.isAlive());
+        } finally {
+            f.pauseWrites = false;
+            f.resume.countDown();
+        }
+        inserter.join();
+        assertNull(failure.get());
+        txn.abort();
+        assertEquals(0, scanSum(f, 0));
+    }
+
+    /**
+     * Unit test for BufferPool.scanLocksTable(): only scans through a ring,
+     * or past the escalation threshold, lock the whole table.
+     */
+    @Test public void onlyLargeScansLockTheTable() throws Exception {
+        BufferPool bp = Database.resetBufferPool(new BufferPool(32, 1, ClockReplacementPolicy::new));
+        int pageSize = BufferPool.getPageSize();
+        assertFalse(bp.scanLocksTable(4, pageSize));
+        assertTrue(bp.scanLocksTable(33, pageSize));
+        bp.setLockEscalationThreshold(4);
+        assertTrue(bp.scanLocksTable(4, pageSize));
+        bp.setLockEscalationThreshold(0);
+        assertFalse(bp.scanLocksTable(4, pageSize));
+    }
+
+    /**
+     * Unit test for scan rings: scanning a table larger than the pool does not
+     * push out pages that were cached before.
+     */
+    @Test public void largeScanKeepsHotPages() throws Exception {
+        List<List<Integer>> tuples = new ArrayList<>();
+        HeapFile large = SystemTestUtil.createRandomHeapFile(2, ROWS, null, tuples);
+        CountingHeapFile hot = new CountingHeapFile(SystemTestUtil.createRandomHeapFile(2, 2000, null, null));
+        Database.getCatalog().addTable(hot);
+        BufferPool bp = Database.resetBufferPool(new BufferPool(32, 1, ClockReplacementPolicy::new));
+        assertNull(bp.newScanRing(hot.numPages()));
+        assertNotNull(bp.newScanRing(large.numPages()));
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < hot.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        int loads = hot.pageReads.get();
+
+        assertEquals(sumOfFirstColumn(tuples), scanSum(large, ROWS));
+
+        tid = new TransactionId();
+        for (int i = 0; i < hot.numPages(); i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        assertEquals(loads, hot.pageReads.get());
+    }
+
+    /**
+     * Unit test for pin counts: a pinned page is never chosen for eviction,
+     * and pins are dropped when the transaction completes.
+     */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        CountingHeapFile f = new CountingHeapFile(SystemTestUtil.createRandomHeapFile(2, ROWS, null, null));
+        Database.getCatalog().addTable(f);
+        BufferPool bp = Database.resetBufferPool(new BufferPool(3, 1, ClockReplacementPolicy::new));
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 3; i++)
+            bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        bp.unpinPage(tid, new HeapPageId(f.getId(), 2));
+        assertEquals(2, bp.getNumPins(tid));
+
+        // page 2 is the only one that may go
+        bp.getPage(tid, new HeapPageId(f.getId(), 3), Permissions.READ_ONLY);
+        int reads = f.pageReads.get();
+        bp.getPage(tid, new HeapPageId(f.getId(), 0), Permissions.READ_ONLY);
+        bp.getPage(tid, new HeapPageId(f.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(reads, f.pageReads.get());
+
+        // with every frame pinned the pool lends out one more
+        bp.getPage(tid, new HeapPageId(f.getId(), 4), Permissions.READ_ONLY);
+        assertEquals(reads + 1, f.pageReads.get());
+        assertEquals(4, bp.getNumResidentPages());
+
+        // but not a second one: the next load waits for an unpin
+        TransactionId other = new TransactionId();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread load = new Thread(() -> {
+            try {
+                bp.getPage(other, new HeapPageId(f.getId(), 5), Permissions.READ_ONLY);
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        load.start();
+        load.join(200);
+        assertTrue(load.isAlive());
+        assertEquals(4, bp.getNumResidentPages());
+        // page 0 was fetched twice
+        bp.unpinPage(tid, new HeapPageId(f.getId(), 0));
+        bp.unpinPage(tid, new HeapPageId(f.getId(), 0));
+        load.join();
+        assertNull(failure.get());
+        assertEquals(4, bp.getNumResidentPages());
+
+        bp.transactionComplete(other);
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getNumPins(tid));
+        // the borrowed frame went back with the last pin
+        assertEquals(3, bp.getNumResidentPages());
+    }
+
+    /**
+     * Unit test for STEAL: a transaction may dirty more pages than the pool
+     * holds, and aborting it still undoes every change.
+     */
+    @Test public void bulkInsertLargerThanPool() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        int rows = 1500; // about three pages
+        BufferPool bp = Database.resetBufferPool(new BufferPool(2, 1, ClockReplacementPolicy::new));
+
+        Transaction txn = new Transaction();
+        txn.start();
+        for (int i = 0; i < rows; i++)
+            bp.insertTuple(txn.getId(), f.getId(), magicTuple());
+        assertTrue(f.numPages() > 2);
+        txn.abort();
+        assertEquals(0, scanSum(f, 0));
+
+        txn = new Transaction();
+        txn.start();
+        for (int i = 0; i < rows; i++)
+            bp.insertTuple(txn.getId(), f.getId(), magicTuple());
+        txn.commit();
+        assertEquals(12345L * rows, scanSum(f, rows));
+    }
+
+    /**
+     * Unit test for the BufferPool and transaction metrics published over JMX.
+     */
+    @Test public void metricsOverJmx() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1500, null, null); // three pages
+        BufferPool bp = Database.resetBufferPool(new BufferPool(2, 1, ClockReplacementPolicy::new));
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName pool = new ObjectName("simpledb:type=BufferPool");
+        ObjectName transactions = new ObjectName("simpledb:type=Transactions");
+
+        TransactionId tid = new TransactionId();
+        for (int pgNo : new int[]{0, 0, 1, 2}) {
+            PageId pid = new HeapPageId(f.getId(), pgNo);
+            bp.getPage(tid, pid, Permissions.READ_ONLY);
+            bp.unpinPage(tid, pid);
+        }
+        bp.transactionComplete(tid);
+        assertEquals(1L, server.getAttribute(pool, "Hits"));
+        assertEquals(3L, server.getAttribute(pool, "Misses"));
+        assertEquals(1L, server.getAttribute(pool, "Evictions"));
+        assertEquals(2, server.getAttribute(pool, "ResidentPages"));
+        assertEquals(0.25, (Double) server.getAttribute(pool, "HitRatio"), 1e-9);
+        assertEquals(4L, server.getAttribute(transactions, "LockRequests"));
+
+        Transaction txn = new Transaction();
+        txn.start();
+        bp.insertTuple(txn.getId(), f.getId(), magicTuple());
+        assertEquals(1, server.getAttribute(pool, "DirtyPages"));
+        txn.commit();
+        assertEquals(0, server.getAttribute(pool, "DirtyPages"));
+        assertEquals(1L, server.getAttribute(pool, "PagesFlushed"));
+        txn = new Transaction();
+        txn.start();
+        bp.insertTuple(txn.getId(), f.getId(), magicTuple());
+        txn.abort();
+        assertEquals(1L, server.getAttribute(transactions, "Commits"));
+        assertEquals(1L, server.getAttribute(transactions, "Aborts"));
+    }
+
+    /**
+     * Unit test for BufferPool.getPage() counting a deadlock victim apart
+     * from a request that timed out.
+     */
+    @Test public void deadlockVictimIsNotATimeout() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1000, null, null); // two pages
+        BufferPool bp = Database.resetBufferPool(new BufferPool(4, 1, ClockReplacementPolicy::new));
+        PageId first = new HeapPageId(f.getId(), 0);
+        PageId second = new HeapPageId(f.getId(), 1);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        bp.getPage(older, first, Permissions.READ_WRITE);
+        bp.getPage(younger, second, Permissions.READ_WRITE);
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread olderThread = new Thread(() -> {
+            try {
+                bp.getPage(older, second, Permissions.READ_WRITE);
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        });
+        olderThread.start();
+        while (olderThread.getState() != Thread.State.TIMED_WAITING)
+            Thread.sleep(1);
+
+        try {
+            bp.getPage(younger, first, Permissions.READ_WRITE);
+            fail("expected the younger transaction to be refused");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        bp.transactionComplete(younger, false);
+        olderThread.join();
+        assertNull(failure.get());
+        bp.transactionComplete(older);
+
+        TransactionMetrics metrics = bp.getTransactionMetrics();
+        assertEquals(1, metrics.getDeadlockAborts());
+        assertEquals(0, metrics.getLockTimeouts());
+    }
+
+    /**
+     * Unit test for Database.resetBufferPool() applying the page list system
+     * property to the new pool.
+     */
+    @Test public void pageListPropertyAfterReset() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1500, null, null); // three pages
+        File pageList = File.createTempFile("pages", ".lst");
+        pageList.delete();
+        pageList.deleteOnExit();
+        System.setProperty("simpledb.pageList", pageList.getPath());
+        try {
+            BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            TransactionId tid = new TransactionId();
+            bp.getPage(tid, new HeapPageId(f.getId(), 1), Permissions.READ_ONLY);
+            bp.transactionComplete(tid);
+            bp.savePageList();
+            assertTrue(pageList.exists());
+
+            bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+            bp.warmUp().join();
+            assertEquals(1, bp.getNumResidentPages());
+        } finally {
+            System.clearProperty("simpledb.pageList");
+        }
+    }
+
+    private static long backgroundThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(t -> t.getName().equals("BufferPool dirty page writer")
+                        || t.getName().equals("BufferPool page list writer"))
+                .count();
+    }
+
+    /**
+     * Unit test for Database.resetBufferPool() stopping the background
+     * threads of the pool it replaces.
+     */
+    @Test public void resetStopsBackgroundThreads() throws Exception {
+        File pageList = File.createTempFile("pages", ".lst");
+        pageList.deleteOnExit();
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        bp.startBackgroundWriter(0, 1000);
+        bp.enablePageList(pageList, 1000);
+        assertEquals(2, backgroundThreads());
+
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        assertEquals(0, backgroundThreads());
+    }
+
+    /**
+     * Unit test for a warm restart: the resident pages saved by one pool are
+     * loaded by the next one before they are asked for.
+     */
+    @Test public void warmRestart() throws Exception {
+        HeapFile f = SystemTestUtil.createRandomHeapFile(2, 1500, null, null); // three pages
+        File pageList = File.createTempFile("pages", ".lst");
+        pageList.deleteOnExit();
+        BufferPool bp = Database.resetBufferPool(new BufferPool(4, 1, ClockReplacementPolicy::new));
+        bp.enablePageList(pageList, 0);
+        TransactionId tid = new TransactionId();
+        for (int pgNo : new int[]{2, 0}) {
+            bp.getPage(tid, new HeapPageId(f.getId(), pgNo), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(tid);
+        bp.savePageList();
+
+        bp = Database.resetBufferPool(new BufferPool(4, 1, ClockReplacementPolicy::new));
+        bp.enablePageList(pageList, 0);
+        bp.warmUp().join();
+        assertEquals(2, bp.getNumResidentPages());
+        tid = new TransactionId();
+        for (int pgNo : new int[]{0, 2}) {
+            bp.getPage(tid, new HeapPageId(f.getId(), pgNo), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(tid);
+        assertEquals(2, bp.getMetrics().getHits());
+        assertEquals(0, bp.getMetrics().getMisses());
+
+        // warm-up only fills free frames
+        bp = Database.resetBufferPool(new BufferPool(1, 1, ClockReplacementPolicy::new));
+        bp.enablePageList(pageList, 0);
+        bp.warmUp().join();
+        assertEquals(1, bp.getNumResidentPages());
+    }
+
+    private static HeapFile emptyHeapFile(int pageSize) throws Exception {
+        File file = File.createTempFile("table", ".dat");
+        file.deleteOnExit();
+        HeapFile f = new HeapFile(file, Utility.getTupleDesc(2), pageSize);
+        Database.getCatalog().addTable(f, SystemTestUtil.getUUID());
+        return f;
+    }
+
+    /**
+     * Unit test for a BufferPool sized in bytes, shared by tables with
+     * different page sizes.
+     */
+    @Test public void memoryBudgetWithMixedPageSizes() throws Exception {
+        HeapFile small = emptyHeapFile(4096);
+        HeapFile large = emptyHeapFile(16384);
+        long budget = 32768;
+        BufferPool bp = Database.resetBufferPool(
+                BufferPool.withMemoryBudget(budget, 1, ClockReplacementPolicy::new));
+        assertEquals(budget, bp.getMemoryBudget());
+        assertEquals(8, bp.getNumPages());
+
+        int rows = 3000; // six small pages and two large ones
+        for (HeapFile f : new HeapFile[]{small, large}) {
+            Transaction txn = new Transaction();
+            txn.start();
+            for (int i = 0; i < rows; i++)
+                bp.insertTuple(txn.getId(), f.getId(), magicTuple());
+            txn.commit();
+        }
+        assertEquals(6, small.numPages());
+        assertEquals(2, large.numPages());
+
+        TransactionId tid = new TransactionId();
+        Page page = bp.getPage(tid, new HeapPageId(large.getId(), 0), Permissions.READ_ONLY);
+        assertEquals(16384, page.getPageSize());
+        assertEquals(0, ((HeapPage) page).getNumEmptySlots());
+        bp.transactionComplete(tid);
+
+        for (int round = 0; round < 2; round++) {
+            assertEquals(12345L * rows, scanSum(small, rows));
+            assertTrue(bp.getResidentBytes() <= budget);
+            assertEquals(12345L * rows, scanSum(large, rows));
+            assertTrue(bp.getResidentBytes() <= budget);
+        }
+        assertTrue(bp.getMetrics().getEvictions() > 0);
+    }
+
+    private static void readPages(BufferPool bp, HeapFile f, int numPages) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int pgNo = 0; pgNo < numPages; pgNo++) {
+            PageId pid = new HeapPageId(f.getId(), pgNo);
+            bp.getPage(tid, pid, Permissions.READ_ONLY);
+            bp.unpinPage(tid, pid);
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Unit test for the cache policies of the catalog: a HIGH priority table
+     * stays resident while another table is read, and a table with a quota
+     * only displaces its own pages once it reaches the quota.
+     */
+    @Test public void cachePriorityAndQuota() throws Exception {
+        HeapFile dimension = SystemTestUtil.createRandomHeapFile(2, 1000, null, null); // two pages
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 1000, null, null);
+        HeapFile fact = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+        Database.getCatalog().setCachePolicy(dimension.getId(), CachePriority.HIGH, 0);
+        assertTrue(Database.getCatalog().hasCachePolicies());
+        BufferPool bp = Database.resetBufferPool(new BufferPool(8, 1, ClockReplacementPolicy::new));
+        int pageSize = BufferPool.getPageSize();
+
+        readPages(bp, dimension, 2);
+        for (int round = 0; round < 3; round++)
+            readPages(bp, fact, 20);
+        assertEquals(2L * pageSize, bp.getResidentBytes(dimension.getId()));
+
+        Database.getCatalog().setCachePolicy(fact.getId(), CachePriority.NORMAL, 2L * pageSize);
+        readPages(bp, other, 2);
+        readPages(bp, fact, 20);
+        assertEquals(2L * pageSize, bp.getResidentBytes(fact.getId()));
+        assertEquals(2L * pageSize, bp.getResidentBytes(other.getId()));
+        assertEquals(2L * pageSize, bp.getResidentBytes(dimension.getId()));
+    }
+
+    /**
+     * Unit test for the BufferPool constructor rejecting more partitions than frames.
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyPartitions() {
+        new BufferPool(2, 3, ClockReplacementPolicy::new);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolTest.class);
+    }
+}
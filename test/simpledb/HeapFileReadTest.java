@@ -1,11 +1,13 @@
 package simpledb;
 
 import simpledb.common.Database;
+import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -81,6 +83,129 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() called from several threads at once,
+     * and after a thread interrupted during I/O closed the file channel.
+     */
+    @Test
+    public void concurrentReadPage() throws Exception {
+        HeapFile bigFile = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        int numPages = bigFile.numPages();
+        byte[][] expected = new byte[numPages][];
+        for (int i = 0; i < numPages; i++)
+            expected[i] = bigFile.readPage(new HeapPageId(bigFile.getId(), i)).getPageData();
+
+        List<Thread> readers = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for (int r = 0; r < 4; r++) {
+            int first = r;
+            readers.add(new Thread(() -> {
+                try {
+                    for (int n = 0; n < 50; n++) {
+                        int pgNo = (first + n) % numPages;
+                        Page page = bigFile.readPage(new HeapPageId(bigFile.getId(), pgNo));
+                        assertArrayEquals(expected[pgNo], page.getPageData());
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }));
+        }
+        for (Thread reader : readers)
+            reader.start();
+        for (Thread reader : readers)
+            reader.join();
+        assertEquals(Collections.emptyList(), failures);
+
+        Page first = bigFile.readPage(new HeapPageId(bigFile.getId(), 0));
+        Thread.currentThread().interrupt();
+        try {
+            bigFile.writePage(first);
+            fail("expected the interrupt to stop the write");
+        } catch (java.io.IOException ignored) {
+        } finally {
+            Thread.interrupted();
+        }
+        Page page = bigFile.readPage(new HeapPageId(bigFile.getId(), numPages - 1));
+        assertArrayEquals(expected[numPages - 1], page.getPageData());
+    }
+
+    /**
+     * Unit test for HeapFile.readPage() in memory-mapped mode, including a
+     * page handed out before the page was overwritten.
+     */
+    @Test
+    public void memoryMappedReadPage() throws Exception {
+        HeapFile bigFile = SystemTestUtil.createRandomHeapFile(2, 3000, null, null);
+        HeapPageId pid = new HeapPageId(bigFile.getId(), 0);
+        byte[] expected = bigFile.readPage(pid).getPageData();
+
+        bigFile.setMemoryMapped(true);
+        HeapPage mapped = (HeapPage) bigFile.readPage(pid);
+        assertTrue(mapped.isFrameBacked());
+        assertArrayEquals(expected, mapped.getPageData());
+
+        HeapPage changed = (HeapPage) bigFile.readPage(pid);
+        changed.deleteTuple(changed.iterator().next());
+        bigFile.writePage(changed);
+        assertArrayEquals(expected, mapped.getPageData());
+        assertEquals(1, ((HeapPage) bigFile.readPage(pid)).getNumEmptySlots());
+
+        int count = 0;
+        DbFileIterator it = bigFile.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        assertEquals(2999, count);
+    }
+
+    /**
+     * Unit test for reading a table with a varstring field, as declared in a
+     * schema file and written by HeapFileEncoder
+     */
+    @Test
+    public void variableLengthStrings() throws Exception {
+        File dir = java.nio.file.Files.createTempDirectory("varstring").toFile();
+        dir.deleteOnExit();
+        File text = new File(dir, "codes.txt");
+        File data = new File(dir, "codes.dat");
+        File schema = new File(dir, "schema.txt");
+        text.deleteOnExit();
+        data.deleteOnExit();
+        schema.deleteOnExit();
+        try (java.io.PrintWriter out = new java.io.PrintWriter(text)) {
+            for (int i = 0; i < 1000; i++)
+                out.println(i + "," + (i % 10 == 0 ? "" : "c" + i));
+        }
+        try (java.io.PrintWriter out = new java.io.PrintWriter(schema)) {
+            out.println("codes (id int, code varstring)");
+        }
+        HeapFileEncoder.convert(text, data, BufferPool.getPageSize(), 2,
+                new Type[]{Type.INT_TYPE, Type.VARSTRING_TYPE});
+        Database.getCatalog().loadSchema(schema.getAbsolutePath());
+
+        int tableId = Database.getCatalog().getTableId("codes");
+        assertEquals(Type.VARSTRING_TYPE, Database.getCatalog().getTupleDesc(tableId).getFieldType(1));
+        HeapFile codes = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+        // 1000 strings padded to 132 bytes would take 34 pages
+        assertTrue(codes.numPages() <= 5);
+
+        DbFileIterator it = codes.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            Tuple t = it.next();
+            int id = ((IntField) t.getField(0)).getValue();
+            assertEquals(id % 10 == 0 ? "" : "c" + id, ((StringField) t.getField(1)).getValue());
+            count++;
+        }
+        it.close();
+        assertEquals(1000, count);
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
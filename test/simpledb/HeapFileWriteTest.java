@@ -7,12 +7,15 @@ import org.junit.Test;
 import static org.junit.Assert.*;
 import junit.framework.JUnit4TestAdapter;
 import simpledb.common.Database;
+import simpledb.common.Permissions;
 import simpledb.common.Utility;
 import simpledb.storage.*;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
 
+import java.io.File;
 import java.util.Arrays;
+import java.util.List;
 
 public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
     private TransactionId tid;
@@ -50,6 +53,93 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         assertEquals(3, empty.numPages());
     }
 
+    /**
+     * Unit test for HeapFile.insertTuple() passing over a page another
+     * transaction is writing instead of waiting for it.
+     */
+    @Test public void concurrentInsertsUseOwnPages() throws Exception {
+        empty.insertTuple(tid, Utility.getHeapTuple(0, 2));
+        TransactionId other = new TransactionId();
+        try {
+            List<Page> pages = empty.insertTuple(other, Utility.getHeapTuple(1, 2));
+            assertEquals(1, pages.get(0).getId().getPageNumber());
+            assertEquals(2, empty.numPages());
+            assertFalse(Database.getBufferPool().holdsLock(other, new HeapPageId(empty.getId(), 0)));
+
+            // page 1 belongs to the other transaction now
+            for (int i = 1; i < 504; ++i)
+                assertEquals(0, empty.insertTuple(tid, Utility.getHeapTuple(i, 2)).get(0).getId().getPageNumber());
+            assertEquals(2, empty.insertTuple(tid, Utility.getHeapTuple(0, 2)).get(0).getId().getPageNumber());
+        } finally {
+            Database.getBufferPool().transactionComplete(other);
+        }
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple() appending another page when a
+     * concurrent inserter fills the page it just appended, and for the lock
+     * on a full page being dropped once it was only probed for room.
+     */
+    @Test public void appendedPageFilledByAnotherInserter() throws Exception {
+        TransactionId other = new TransactionId();
+        boolean[] filled = {false};
+        HeapFile file = new HeapFile(File.createTempFile("race", ".dat"), Utility.getTupleDesc(2)) {
+            @Override
+            public void writePage(Page page) throws java.io.IOException {
+                super.writePage(page);
+                if (filled[0])
+                    return;
+                filled[0] = true;
+                try {
+                    for (int i = 0; i < 504; ++i)
+                        insertTuple(other, Utility.getHeapTuple(i, 2));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+                Database.getBufferPool().transactionComplete(other);
+            }
+        };
+        Database.getCatalog().addTable(file);
+
+        assertEquals(1, file.insertTuple(tid, Utility.getHeapTuple(0, 2)).get(0).getId().getPageNumber());
+        assertEquals(2, file.numPages());
+        assertFalse(Database.getBufferPool().holdsLock(tid, new HeapPageId(file.getId(), 0)));
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple() going past full pages to one with
+     * room, and back to a full page once a deletion frees a slot on it.
+     */
+    @Test public void insertUsesFreeSpace() throws Exception {
+        for (int i = 0; i < 505; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(2, empty.numPages());
+        assertEquals(1, empty.insertTuple(tid, Utility.getHeapTuple(0, 2)).get(0).getId().getPageNumber());
+
+        HeapPage first = (HeapPage) Database.getBufferPool().getPage(tid,
+                new HeapPageId(empty.getId(), 0), Permissions.READ_ONLY);
+        Tuple victim = first.iterator().next();
+        empty.deleteTuple(tid, victim);
+        assertEquals(0, empty.insertTuple(tid, Utility.getHeapTuple(1, 2)).get(0).getId().getPageNumber());
+        assertEquals(1, empty.insertTuple(tid, Utility.getHeapTuple(2, 2)).get(0).getId().getPageNumber());
+        assertEquals(2, empty.numPages());
+    }
+
+    /**
+     * Unit test for HeapFile.insertTuple() reusing a page that an aborted
+     * transaction filled.
+     */
+    @Test public void insertUsesPagesFilledByAbortedTransaction() throws Exception {
+        for (int i = 0; i < 504; ++i)
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        assertEquals(1, empty.numPages());
+        Database.getBufferPool().transactionComplete(tid, false);
+
+        tid = new TransactionId();
+        assertEquals(0, empty.insertTuple(tid, Utility.getHeapTuple(0, 2)).get(0).getId().getPageNumber());
+        assertEquals(1, empty.numPages());
+    }
+
     @Test
     public void testAlternateEmptyAndFullPagesThenIterate() throws Exception {
         // Create HeapFile/Table
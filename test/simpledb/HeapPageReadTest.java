@@ -2,19 +2,25 @@ package simpledb;
 
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
+import simpledb.common.Type;
 import simpledb.common.Utility;
+import simpledb.execution.Predicate;
 import simpledb.storage.*;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import org.junit.Before;
 import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import junit.framework.JUnit4TestAdapter;
 
@@ -123,6 +129,99 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for a HeapPage built on an off-heap frame
+     */
+    @Test public void frameBackedPage() throws Exception {
+        FrameArena arena = new FrameArena(1, BufferPool.getPageSize());
+        ByteBuffer frame = arena.view(arena.acquire());
+        frame.put(EXAMPLE_DATA);
+        HeapPage page = new HeapPage(pid, frame);
+        assertTrue(page.isFrameBacked());
+        assertEquals(484, page.getNumEmptySlots());
+
+        Iterator<Tuple> it = page.iterator();
+        int row = 0;
+        while (it.hasNext()) {
+            Tuple tup = it.next();
+            assertEquals(EXAMPLE_VALUES[row][0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(EXAMPLE_VALUES[row][1], ((IntField) tup.getField(1)).getValue());
+            row++;
+        }
+        assertEquals(EXAMPLE_VALUES.length, row);
+        assertArrayEquals(EXAMPLE_DATA, page.getPageData());
+        assertArrayEquals(EXAMPLE_DATA, page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * Unit test for HeapPage.iterator(Predicate)
+     */
+    @Test public void filteredIterator() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Predicate p = new Predicate(1, Predicate.Op.GREATER_THAN, new IntField(40000));
+        Iterator<Tuple> it = page.iterator(p);
+        int row = 0;
+        for (int[] values : EXAMPLE_VALUES) {
+            if (values[1] <= 40000)
+                continue;
+            assertTrue(it.hasNext());
+            Tuple tup = it.next();
+            assertEquals(values[0], ((IntField) tup.getField(0)).getValue());
+            assertEquals(values[1], ((IntField) tup.getField(1)).getValue());
+            row++;
+        }
+        assertFalse(it.hasNext());
+        assertTrue(row > 0 && row < EXAMPLE_VALUES.length);
+    }
+
+    /**
+     * Unit test for Type.compare() on stored bytes agreeing with
+     * Field.compare() for every op, including strings that are not ASCII
+     */
+    @Test public void storedBytesCompareLikeFields() throws Exception {
+        Field[] ints = {new IntField(-7), new IntField(0), new IntField(40000)};
+        String[] strings = {"", "ab", "abc", "abd", "b", "caf\u00e9", "cafe"};
+        for (Predicate.Op op : Predicate.Op.values()) {
+            for (Field stored : ints)
+                for (Field operand : ints)
+                    assertStoredCompare(Type.INT_TYPE, stored, op, operand);
+            for (Type type : new Type[]{Type.STRING_TYPE, Type.VARSTRING_TYPE}) {
+                for (String stored : strings) {
+                    for (String operand : strings) {
+                        if (type == Type.STRING_TYPE && stored.contains("\u00e9"))
+                            continue; // fixed-length strings are stored one byte per char
+                        assertStoredCompare(type, new StringField(stored, Type.STRING_LEN, type), op,
+                                new StringField(operand, Type.STRING_LEN, type));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertStoredCompare(Type type, Field stored, Predicate.Op op, Field operand)
+            throws IOException {
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        java.io.DataOutputStream dos = new java.io.DataOutputStream(bytes);
+        dos.writeInt(0x5a5a5a5a); // the field does not start at the beginning of the buffer
+        type.serializeStored(stored, dos);
+        ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+        assertEquals(stored + " " + op + " " + operand, stored.compare(op, operand),
+                type.compare(buf, 4, op, operand));
+    }
+
+    /**
+     * Unit test for HeapPage handing every reader the tuple it decoded once
+     */
+    @Test public void decodedTuplesAreShared() throws Exception {
+        HeapPage page = new HeapPage(pid, EXAMPLE_DATA);
+        Tuple first = page.iterator().next();
+        assertSame(first, page.iterator().next());
+        page.setBeforeImage();
+        Tuple decodedAgain = page.iterator().next();
+        assertNotSame(first, decodedAgain);
+        assertEquals(first.getField(1), decodedAgain.getField(1));
+    }
+
     /**
      * JUnit suite target
      */
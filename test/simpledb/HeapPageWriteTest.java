@@ -1,7 +1,9 @@
 package simpledb;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 
 import junit.framework.JUnit4TestAdapter;
 
@@ -11,10 +13,14 @@ import org.junit.Test;
 import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.Type;
 import simpledb.common.Utility;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.StringField;
 import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 import simpledb.transaction.TransactionId;
@@ -131,6 +137,90 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage with a variable-length string field, which
+     * uses the slotted layout
+     */
+    @Test public void variableLengthTuples() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.VARSTRING_TYPE});
+        Database.getCatalog().addTable(new SkeletonFile(-2, td), SystemTestUtil.getUUID());
+        HeapPageId varPid = new HeapPageId(-2, 0);
+        HeapPage page = new HeapPage(varPid, HeapPage.createEmptyPageData());
+        assertFalse(page.iterator().hasNext());
+
+        List<Tuple> inserted = new ArrayList<>();
+        while (page.hasRoomFor(varTuple(td, inserted.size()))) {
+            Tuple t = varTuple(td, inserted.size());
+            page.insertTuple(t);
+            inserted.add(t);
+        }
+        // padded to 132 bytes, only 30 such strings would fit on a page
+        assertTrue(inserted.size() > 100);
+        try {
+            page.insertTuple(varTuple(td, 0));
+            fail("page should be full; expected DbException");
+        } catch (DbException e) {
+            // explicitly ignored
+        }
+
+        page.deleteTuple(inserted.remove(7));
+        Tuple t = varTuple(td, 7);
+        assertTrue(page.hasRoomFor(t));
+        page.insertTuple(t);
+        inserted.add(7, t);
+
+        HeapPage copy = new HeapPage(varPid, page.getPageData());
+        Iterator<Tuple> it = copy.iterator();
+        for (Tuple expected : inserted) {
+            assertTrue(it.hasNext());
+            Tuple actual = it.next();
+            assertEquals(expected.getField(0), actual.getField(0));
+            assertEquals(expected.getField(1), actual.getField(1));
+        }
+        assertFalse(it.hasNext());
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+    }
+
+    /**
+     * Unit test for HeapPage round-tripping variable-length strings that are
+     * not ASCII, including one cut back to a whole character
+     */
+    @Test public void variableLengthNonAsciiStrings() throws Exception {
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.VARSTRING_TYPE});
+        Database.getCatalog().addTable(new SkeletonFile(-3, td), SystemTestUtil.getUUID());
+        HeapPageId varPid = new HeapPageId(-3, 0);
+        HeapPage page = new HeapPage(varPid, HeapPage.createEmptyPageData());
+        String[] values = {"Gr\u00fc\u00dfe", "\u65e5\u672c\u8a9e", "\ud83d\ude00 caf\u00e9", ""};
+        for (int i = 0; i < values.length; i++) {
+            Tuple t = new Tuple(td);
+            t.setField(0, new IntField(i));
+            t.setField(1, new StringField(values[i], Type.STRING_LEN, Type.VARSTRING_TYPE));
+            page.insertTuple(t);
+        }
+        // 60 three-byte characters take 180 bytes, more than STRING_LEN
+        StringBuilder longValue = new StringBuilder();
+        for (int i = 0; i < 60; i++)
+            longValue.append('\u8a9e');
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(values.length));
+        t.setField(1, new StringField(longValue.toString(), Type.STRING_LEN, Type.VARSTRING_TYPE));
+        page.insertTuple(t);
+
+        Iterator<Tuple> it = new HeapPage(varPid, page.getPageData()).iterator();
+        for (String value : values)
+            assertEquals(value, ((StringField) it.next().getField(1)).getValue());
+        assertEquals(longValue.substring(0, Type.STRING_LEN / 3),
+                ((StringField) it.next().getField(1)).getValue());
+        assertFalse(it.hasNext());
+    }
+
+    private static Tuple varTuple(TupleDesc td, int i) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField("s" + i, Type.STRING_LEN, Type.VARSTRING_TYPE));
+        return t;
+    }
+
     /**
      * JUnit suite target
      */
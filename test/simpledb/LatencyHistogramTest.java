@@ -0,0 +1,49 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+
+import simpledb.common.LatencyHistogram;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    /**
+     * Unit test for LatencyHistogram counts, mean and maximum.
+     */
+    @Test public void countMeanAndMax() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanMicros(), 0);
+        assertEquals(0, histogram.getPercentileMicros(0.99), 0);
+        histogram.record(1000);
+        histogram.record(3000);
+        histogram.record(-5); // counts as 0
+        assertEquals(3, histogram.getCount());
+        assertEquals(4.0 / 3, histogram.getMeanMicros(), 1e-9);
+        assertEquals(3.0, histogram.getMaxMicros(), 0);
+    }
+
+    /**
+     * Unit test for LatencyHistogram percentiles staying within a factor of two.
+     */
+    @Test public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++)
+            histogram.record(10_000);     // 10 us
+        histogram.record(5_000_000);      // 5 ms
+        double p50 = histogram.getPercentileMicros(0.5);
+        assertTrue(p50 >= 10 && p50 < 20);
+        double p99 = histogram.getPercentileMicros(0.99);
+        assertTrue(p99 >= 10 && p99 < 20);
+        assertEquals(5000.0, histogram.getPercentileMicros(1), 0);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LatencyHistogramTest.class);
+    }
+}
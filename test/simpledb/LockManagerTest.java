@@ -0,0 +1,359 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.DeadlockPolicy;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.LockMode;
+import simpledb.transaction.LockOutcome;
+import simpledb.transaction.TransactionId;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest {
+
+    private static final long WAIT = 5000;
+
+    private final LockManager lockManager = new LockManager();
+    private final PageId pid = new HeapPageId(1, 0);
+    private final List<TransactionId> grants = new CopyOnWriteArrayList<>();
+
+    /**
+     * Start a thread that waits for the lock and records when it gets it,
+     * and return once the thread is parked in the page's queue.
+     */
+    private Thread waitFor(TransactionId tid, Permissions perm) throws InterruptedException {
+        Thread thread = new Thread(() -> {
+            if (lockManager.lock(tid, pid, perm, WAIT).isGranted())
+                grants.add(tid);
+        });
+        thread.start();
+        while (thread.getState() != Thread.State.TIMED_WAITING && thread.isAlive())
+            Thread.sleep(1);
+        return thread;
+    }
+
+    /**
+     * Unit test for LockManager granting waiting requests in arrival order.
+     */
+    @Test public void fifoGrants() throws Exception {
+        TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+        TransactionId writer2 = new TransactionId();
+        assertTrue(lockManager.tryLock(writer, pid, Permissions.READ_WRITE));
+
+        Thread readerThread = waitFor(reader, Permissions.READ_ONLY);
+        Thread writer2Thread = waitFor(writer2, Permissions.READ_WRITE);
+        // a new reader may not overtake the queued writer
+        assertFalse(lockManager.tryLock(new TransactionId(), pid, Permissions.READ_ONLY));
+
+        lockManager.releaseAllLocks(writer);
+        readerThread.join();
+        assertEquals(1, grants.size());
+        assertEquals(reader, grants.get(0));
+        assertTrue(writer2Thread.isAlive());
+
+        lockManager.releaseAllLocks(reader);
+        writer2Thread.join();
+        assertEquals(writer2, grants.get(1));
+        assertTrue(lockManager.holdsLock(writer2, pid));
+    }
+
+    /**
+     * Unit test for LockManager putting a lock upgrade ahead of the queue.
+     */
+    @Test public void upgradeGoesFirst() throws Exception {
+        TransactionId upgrader = new TransactionId();
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        assertTrue(lockManager.tryLock(upgrader, pid, Permissions.READ_ONLY));
+        assertTrue(lockManager.tryLock(reader, pid, Permissions.READ_ONLY));
+
+        Thread writerThread = waitFor(writer, Permissions.READ_WRITE);
+        Thread upgraderThread = waitFor(upgrader, Permissions.READ_WRITE);
+
+        lockManager.releaseAllLocks(reader);
+        upgraderThread.join();
+        assertEquals(upgrader, grants.get(0));
+        assertTrue(writerThread.isAlive());
+
+        lockManager.releaseAllLocks(upgrader);
+        writerThread.join();
+        assertEquals(writer, grants.get(1));
+    }
+
+    /**
+     * Unit test for LockManager giving up a wait on timeout without blocking
+     * the requests queued behind it.
+     */
+    @Test public void timeoutLeavesQueue() throws Exception {
+        TransactionId writer = new TransactionId();
+        TransactionId reader = new TransactionId();
+        TransactionId impatient = new TransactionId();
+        assertTrue(lockManager.tryLock(reader, pid, Permissions.READ_ONLY));
+
+        Thread writerThread = waitFor(writer, Permissions.READ_WRITE);
+        long start = System.nanoTime();
+        assertEquals(LockOutcome.TIMED_OUT, lockManager.lock(impatient, pid, Permissions.READ_ONLY, 50));
+        assertTrue(System.nanoTime() - start >= 50_000_000L);
+
+        lockManager.releaseAllLocks(reader);
+        writerThread.join();
+        assertEquals(writer, grants.get(0));
+        assertFalse(lockManager.holdsLock(impatient, pid));
+    }
+
+    /**
+     * Unit test for LockManager breaking a deadlock as soon as it forms, by
+     * refusing the youngest transaction on the cycle.
+     */
+    @Test public void deadlockAbortsYoungest() throws Exception {
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        PageId other = new HeapPageId(1, 1);
+        assertTrue(lockManager.tryLock(older, pid, Permissions.READ_WRITE));
+        assertTrue(lockManager.tryLock(younger, other, Permissions.READ_WRITE));
+
+        Thread olderThread = new Thread(() -> {
+            if (lockManager.lock(older, other, Permissions.READ_WRITE, WAIT).isGranted())
+                grants.add(older);
+        });
+        olderThread.start();
+        while (olderThread.getState() != Thread.State.TIMED_WAITING)
+            Thread.sleep(1);
+
+        long start = System.nanoTime();
+        assertEquals(LockOutcome.ABORTED, lockManager.lock(younger, pid, Permissions.READ_WRITE, WAIT));
+        assertTrue(System.nanoTime() - start < WAIT * 1_000_000L / 2);
+        assertEquals(1, lockManager.getMetrics().getDeadlocks());
+
+        lockManager.releaseAllLocks(younger);
+        olderThread.join();
+        assertEquals(older, grants.get(0));
+    }
+
+    /**
+     * Unit test for LockManager under wait-die: a younger transaction gives
+     * up instead of waiting for an older one, an older one waits.
+     */
+    @Test public void waitDie() throws Exception {
+        LockManager lockManager = new LockManager(DeadlockPolicy.WAIT_DIE);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        PageId other = new HeapPageId(1, 1);
+        assertTrue(lockManager.tryLock(older, pid, Permissions.READ_WRITE));
+        assertTrue(lockManager.tryLock(younger, other, Permissions.READ_WRITE));
+
+        long start = System.nanoTime();
+        assertEquals(LockOutcome.ABORTED, lockManager.lock(younger, pid, Permissions.READ_ONLY, WAIT));
+        assertTrue(System.nanoTime() - start < WAIT * 1_000_000L / 2);
+
+        Thread olderThread = new Thread(() -> {
+            if (lockManager.lock(older, other, Permissions.READ_ONLY, WAIT).isGranted())
+                grants.add(older);
+        });
+        olderThread.start();
+        while (olderThread.getState() != Thread.State.TIMED_WAITING)
+            Thread.sleep(1);
+        lockManager.releaseAllLocks(younger);
+        olderThread.join();
+        assertEquals(older, grants.get(0));
+    }
+
+    /**
+     * Unit test for restarting a transaction with the timestamp of the one
+     * that aborted: it is older than the transactions started since.
+     */
+    @Test public void restartKeepsTimestamp() throws Exception {
+        LockManager lockManager = new LockManager(DeadlockPolicy.WAIT_DIE);
+        TransactionId aborted = new TransactionId();
+        TransactionId started = new TransactionId();
+        TransactionId restarted = new TransactionId(aborted);
+        assertNotEquals(aborted, restarted);
+        assertEquals(aborted.getTimestamp(), restarted.getTimestamp());
+        assertTrue(restarted.isOlderThan(started));
+
+        // the restarted transaction waits for the younger one instead of dying
+        assertTrue(lockManager.tryLock(started, pid, Permissions.READ_WRITE));
+        Thread restartedThread = new Thread(() -> {
+            if (lockManager.lock(restarted, pid, Permissions.READ_ONLY, WAIT).isGranted())
+                grants.add(restarted);
+        });
+        restartedThread.start();
+        while (restartedThread.getState() != Thread.State.TIMED_WAITING)
+            Thread.sleep(1);
+        lockManager.releaseAllLocks(started);
+        restartedThread.join();
+        assertEquals(restarted, grants.get(0));
+    }
+
+    /**
+     * Unit test for LockManager under wound-wait: an older transaction
+     * aborts the younger one it waits for, and a younger one waits.
+     */
+    @Test public void woundWait() throws Exception {
+        LockManager lockManager = new LockManager(DeadlockPolicy.WOUND_WAIT);
+        TransactionId older = new TransactionId();
+        TransactionId younger = new TransactionId();
+        PageId other = new HeapPageId(1, 1);
+        assertTrue(lockManager.tryLock(older, pid, Permissions.READ_WRITE));
+        assertTrue(lockManager.tryLock(younger, other, Permissions.READ_WRITE));
+
+        // the younger transaction waits for the older one ...
+        Thread youngerThread = new Thread(() -> {
+            if (lockManager.lock(younger, pid, Permissions.READ_ONLY, WAIT).isGranted())
+                grants.add(younger);
+        });
+        youngerThread.start();
+        while (youngerThread.getState() != Thread.State.TIMED_WAITING)
+            Thread.sleep(1);
+
+        // ... until the older one wants its page: then it is wounded
+        Thread olderThread = new Thread(() -> {
+            if (lockManager.lock(older, other, Permissions.READ_ONLY, WAIT).isGranted())
+                grants.add(older);
+        });
+        olderThread.start();
+        youngerThread.join(WAIT / 2);
+        assertFalse(youngerThread.isAlive());
+        assertTrue(grants.isEmpty());
+        assertFalse(lockManager.tryLock(younger, new HeapPageId(1, 2), Permissions.READ_ONLY));
+        // not even the page it holds
+        assertFalse(lockManager.tryLock(younger, other, Permissions.READ_WRITE));
+        assertEquals(LockOutcome.ABORTED, lockManager.lock(younger, other, Permissions.READ_ONLY, WAIT));
+
+        lockManager.releaseAllLocks(younger);
+        olderThread.join();
+        assertEquals(older, grants.get(0));
+    }
+
+    /**
+     * Unit test for LockManager keeping exclusive locks exclusive when many
+     * threads lock pages spread over the lock table stripes, re-acquire locks
+     * they hold already, and release them again.
+     */
+    @Test public void concurrentExclusiveLocks() throws Exception {
+        int numThreads = 8;
+        int rounds = 2000;
+        int[] counters = new int[4];
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new Thread(() -> {
+                for (int round = 0; round < rounds; round++) {
+                    TransactionId tid = new TransactionId();
+                    int page = round % counters.length;
+                    PageId lockedPid = new HeapPageId(1, page);
+                    assertEquals(LockOutcome.GRANTED, lockManager.lock(tid, lockedPid, Permissions.READ_WRITE, WAIT));
+                    assertTrue(lockManager.tryLock(tid, lockedPid, Permissions.READ_ONLY));
+                    assertTrue(lockManager.tryLock(tid, lockedPid, Permissions.READ_WRITE));
+                    counters[page]++;
+                    lockManager.releaseAllLocks(tid);
+                    assertFalse(lockManager.holdsLock(tid, lockedPid));
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        for (int counter : counters)
+            assertEquals(numThreads * rounds / counters.length, counter);
+    }
+
+    /**
+     * Unit test for LockManager locking pages under a table lock, and for
+     * the intention locks that page locks take on their table.
+     */
+    @Test public void tableLocks() throws Exception {
+        TransactionId scanner = new TransactionId();
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        PageId other = new HeapPageId(1, 1);
+        assertTrue(lockManager.tryLockTable(scanner, 1, LockMode.S));
+        assertTrue(lockManager.tryLock(scanner, pid, Permissions.READ_ONLY));
+        assertTrue(lockManager.holdsLock(scanner, other));
+
+        // readers of single pages take IS, which goes with S
+        assertTrue(lockManager.tryLock(reader, pid, Permissions.READ_ONLY));
+        // writers take IX, which does not
+        assertFalse(lockManager.tryLock(writer, other, Permissions.READ_WRITE));
+        assertFalse(lockManager.tryLockTable(writer, 1, LockMode.IX));
+
+        // S plus a page write is SIX, which still goes with the reader's IS
+        assertTrue(lockManager.tryLock(scanner, other, Permissions.READ_WRITE));
+        assertEquals(Collections.singleton(other), lockManager.getEXLockPages(scanner));
+        assertFalse(lockManager.tryLock(reader, other, Permissions.READ_ONLY));
+        assertTrue(lockManager.tryLock(reader, new HeapPageId(1, 2), Permissions.READ_ONLY));
+
+        // but not with a second scanner's S
+        assertFalse(lockManager.tryLockTable(writer, 1, LockMode.S));
+
+        lockManager.releaseAllLocks(scanner);
+        lockManager.releaseAllLocks(reader);
+        assertTrue(lockManager.tryLockTable(writer, 1, LockMode.X));
+        assertTrue(lockManager.tryLock(writer, other, Permissions.READ_WRITE));
+        assertFalse(lockManager.tryLock(reader, pid, Permissions.READ_ONLY));
+    }
+
+    /**
+     * Unit test for LockManager escalating many page locks on one table to a
+     * table lock, unless another transaction is in the way.
+     */
+    @Test public void escalation() throws Exception {
+        lockManager.setEscalationThreshold(4);
+        TransactionId reader = new TransactionId();
+        TransactionId writer = new TransactionId();
+        assertTrue(lockManager.tryLock(writer, new HeapPageId(2, 9), Permissions.READ_WRITE));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(lockManager.tryLock(reader, new HeapPageId(1, i), Permissions.READ_ONLY));
+            assertTrue(lockManager.tryLock(reader, new HeapPageId(2, i), Permissions.READ_ONLY));
+        }
+        // table 1 is escalated, table 2 is not because of the writer's IX
+        assertEquals(1, lockManager.getMetrics().getEscalations());
+        assertTrue(lockManager.holdsLock(reader, new HeapPageId(1, 20)));
+        assertFalse(lockManager.holdsLock(reader, new HeapPageId(2, 20)));
+        assertEquals(8, lockManager.getPageIds(reader).size());
+        // further reads under the table lock record no page
+        for (int i = 4; i < 100; i++)
+            assertTrue(lockManager.tryLock(reader, new HeapPageId(1, i), Permissions.READ_ONLY));
+        assertEquals(8, lockManager.getPageIds(reader).size());
+        assertFalse(lockManager.tryLock(writer, new HeapPageId(1, 20), Permissions.READ_WRITE));
+        assertTrue(lockManager.tryLock(writer, new HeapPageId(2, 20), Permissions.READ_WRITE));
+
+        // the table lock goes with the transaction like the page locks
+        lockManager.releaseAllLocks(reader);
+        assertTrue(lockManager.tryLock(writer, new HeapPageId(1, 0), Permissions.READ_WRITE));
+    }
+
+    /**
+     * Unit test for the LockMode compatibility matrix and mode combination.
+     */
+    @Test public void lockModes() {
+        assertTrue(LockMode.IS.isCompatibleWith(LockMode.SIX));
+        assertTrue(LockMode.IX.isCompatibleWith(LockMode.IX));
+        assertFalse(LockMode.IX.isCompatibleWith(LockMode.S));
+        assertFalse(LockMode.SIX.isCompatibleWith(LockMode.SIX));
+        assertFalse(LockMode.X.isCompatibleWith(LockMode.IS));
+        assertEquals(LockMode.SIX, LockMode.S.combine(LockMode.IX));
+        assertEquals(LockMode.SIX, LockMode.IX.combine(LockMode.SIX));
+        assertEquals(LockMode.X, LockMode.SIX.combine(LockMode.X));
+        assertEquals(LockMode.S, LockMode.IS.combine(LockMode.S));
+        assertTrue(LockMode.SIX.covers(LockMode.S));
+        assertFalse(LockMode.SIX.covers(LockMode.X));
+        assertEquals(LockMode.IX, LockMode.SIX.intention());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
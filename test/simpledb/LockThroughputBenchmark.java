@@ -0,0 +1,110 @@
+package simpledb;
+
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.transaction.LockManager;
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures uncontended LockManager throughput for a growing number of
+ * threads. Every thread runs its own transactions on a table of its own, so
+ * no two threads ever ask for the same lock, and the total rate should grow
+ * with the threads until they outnumber the CPUs.
+ * <p>
+ * Two loops are timed: re-acquiring locks the transaction holds already,
+ * which is answered without latching, and acquiring fresh locks that are
+ * then released, which takes the stripe latches.
+ * <p>
+ * Not a unit test, and not run by the test target. Run it with
+ * {@code ant benchmark}, or with
+ * {@code java -cp bin/src:bin/test simpledb.LockThroughputBenchmark [maxThreads] [seconds]}.
+ */
+public class LockThroughputBenchmark {
+
+    private static final int PAGES = 64;
+
+    public static void main(String[] args) throws InterruptedException {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Math.max(4, cpus);
+        double seconds = args.length > 1 ? Double.parseDouble(args[1]) : 2;
+
+        System.out.println(cpus + " CPUs, " + seconds + "s per run");
+        System.out.printf("%8s %16s %8s %16s %8s%n", "threads", "reacquire/s", "speedup", "acquire/s", "speedup");
+        double reacquireBase = 0, acquireBase = 0;
+        for (int threads = 1; ; threads = Math.min(threads * 2, maxThreads)) {
+            double reacquire = run(threads, seconds, true);
+            double acquire = run(threads, seconds, false);
+            if (threads == 1) {
+                reacquireBase = reacquire;
+                acquireBase = acquire;
+            }
+            System.out.printf("%8d %16.0f %8.2f %16.0f %8.2f%n", threads,
+                    reacquire, reacquire / reacquireBase, acquire, acquire / acquireBase);
+            if (threads >= maxThreads)
+                break;
+        }
+    }
+
+    /**
+     * Run the given number of threads against one lock manager, after a warm-up of half the
+     * measured time.
+     *
+     * @param reacquire whether to re-acquire held locks, rather than acquire and release them
+     * @return the lock requests granted per second, over all threads
+     */
+    private static double run(int threads, double seconds, boolean reacquire) throws InterruptedException {
+        LockManager lockManager = new LockManager();
+        long nanos = (long) (seconds * TimeUnit.SECONDS.toNanos(1));
+        CountDownLatch start = new CountDownLatch(1);
+        LongAdder granted = new LongAdder();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            PageId[] pids = new PageId[PAGES];
+            for (int i = 0; i < PAGES; i++)
+                pids[i] = new HeapPageId(t + 1, i);
+            Thread worker = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long measureFrom = System.nanoTime() + nanos / 2;
+                long measureTo = measureFrom + nanos;
+                TransactionId tid = new TransactionId();
+                long count = 0;
+                if (reacquire)
+                    lockAll(lockManager, tid, pids);
+                for (long now = System.nanoTime(); now < measureTo; now = System.nanoTime()) {
+                    if (!reacquire)
+                        tid = new TransactionId();
+                    lockAll(lockManager, tid, pids);
+                    if (!reacquire)
+                        lockManager.releaseAllLocks(tid);
+                    if (now >= measureFrom)
+                        count += PAGES;
+                }
+                granted.add(count);
+            });
+            worker.start();
+            workers.add(worker);
+        }
+        start.countDown();
+        for (Thread worker : workers)
+            worker.join();
+        return granted.sum() / seconds;
+    }
+
+    private static void lockAll(LockManager lockManager, TransactionId tid, PageId[] pids) {
+        for (PageId pid : pids) {
+            if (!lockManager.tryLock(tid, pid, Permissions.READ_WRITE))
+                throw new IllegalStateException("lock on " + pid + " refused without contention");
+        }
+    }
+}
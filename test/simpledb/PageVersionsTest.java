@@ -0,0 +1,104 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.Transaction;
+
+import static org.junit.Assert.*;
+
+public class PageVersionsTest extends TestUtil.CreateHeapFile {
+
+    @Before public void setUp() throws Exception {
+        super.setUp();
+        Transaction load = new Transaction();
+        load.start();
+        for (int i = 0; i < 10; i++)
+            Database.getBufferPool().insertTuple(load.getId(), empty.getId(), Utility.getHeapTuple(i, 2));
+        load.commit();
+    }
+
+    private static int count(Transaction t, HeapFile f) throws Exception {
+        SeqScan scan = new SeqScan(t.getId(), f.getId(), "");
+        scan.open();
+        int count = 0;
+        while (scan.hasNext()) {
+            scan.next();
+            count++;
+        }
+        scan.close();
+        return count;
+    }
+
+    /**
+     * Unit test for a read-only transaction reading the snapshot it started
+     * with while a writer changes and commits the page.
+     */
+    @Test public void snapshotIgnoresLaterCommits() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        Transaction writer = new Transaction();
+        writer.start();
+        Database.getBufferPool().insertTuple(writer.getId(), empty.getId(), Utility.getHeapTuple(10, 2));
+
+        // the writer holds the page exclusively, but the reader does not wait for it
+        assertEquals(10, count(reader, empty));
+        writer.commit();
+        assertEquals(10, count(reader, empty));
+
+        Transaction later = new Transaction(true);
+        later.start();
+        assertEquals(11, count(later, empty));
+        later.commit();
+        reader.commit();
+    }
+
+    /**
+     * Unit test for snapshot reads of a page whose uncommitted changes were
+     * written to disk and dropped from the pool.
+     */
+    @Test public void snapshotIgnoresChangesWrittenEarly() throws Exception {
+        Transaction writer = new Transaction();
+        writer.start();
+        Database.getBufferPool().insertTuple(writer.getId(), empty.getId(), Utility.getHeapTuple(10, 2));
+        Database.getBufferPool().flushPages(writer.getId());
+        Database.getBufferPool().discardPage(new HeapPageId(empty.getId(), 0));
+
+        Transaction reader = new Transaction(true);
+        reader.start();
+        assertEquals(10, count(reader, empty));
+        writer.commit();
+        assertEquals(10, count(reader, empty));
+        reader.commit();
+    }
+
+    /**
+     * Unit test for a read-only transaction refusing to write.
+     */
+    @Test(expected = DbException.class)
+    public void snapshotCannotWrite() throws Exception {
+        Transaction reader = new Transaction(true);
+        reader.start();
+        try {
+            Database.getBufferPool().getPage(reader.getId(), new HeapPageId(empty.getId(), 0),
+                    Permissions.READ_WRITE);
+        } finally {
+            reader.commit();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageVersionsTest.class);
+    }
+}
@@ -0,0 +1,173 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+
+import simpledb.storage.ClockReplacementPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LRUKReplacementPolicy;
+import simpledb.storage.PageId;
+import simpledb.storage.PriorityReplacementPolicy;
+import simpledb.storage.ReplacementPolicy;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest {
+
+    private static final int TABLE_PAGES = 2000;
+    private static final int POOL_PAGES = 200;
+    private static final int TRACE_LENGTH = 200000;
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Unit test for ClockReplacementPolicy: a referenced page gets a second chance.
+     */
+    @Test public void clockSecondChance() {
+        ReplacementPolicy clock = new ClockReplacementPolicy(3);
+        clock.recordInsert(pid(0));
+        clock.recordInsert(pid(1));
+        clock.recordInsert(pid(2));
+        // The first sweep clears every bit, so page 0 is the victim.
+        assertEquals(pid(0), clock.evict(p -> true));
+        clock.recordInsert(pid(3));
+        clock.recordAccess(pid(1));
+        // Page 1 was referenced after the sweep, page 2 was not.
+        assertEquals(pid(2), clock.evict(p -> true));
+        assertEquals(2, clock.size());
+    }
+
+    /**
+     * Unit test for ReplacementPolicy.evict() honouring the evictable predicate.
+     */
+    @Test public void skipsPagesThatCannotBeEvicted() {
+        for (ReplacementPolicy policy : Arrays.asList(
+                new ClockReplacementPolicy(2), new LRUKReplacementPolicy())) {
+            policy.recordInsert(pid(0));
+            policy.recordInsert(pid(1));
+            assertEquals(pid(1), policy.evict(p -> !p.equals(pid(0))));
+            assertNull(policy.evict(p -> false));
+            policy.remove(pid(0));
+            assertEquals(0, policy.size());
+            assertNull(policy.evict(p -> true));
+        }
+    }
+
+    /**
+     * Unit test for PriorityReplacementPolicy: the lowest rank with an
+     * evictable page gives up the victim, each rank with its own CLOCK hand.
+     */
+    @Test public void lowestRankEvictedFirst() {
+        ReplacementPolicy policy = new PriorityReplacementPolicy(3,
+                () -> new ClockReplacementPolicy(4), p -> p.getPageNumber() % 3);
+        for (int i = 0; i < 6; i++)
+            policy.recordInsert(pid(i));
+        assertEquals(6, policy.size());
+        assertEquals(pid(0), policy.evict(p -> true));
+        assertEquals(pid(3), policy.evict(p -> true));
+        // rank 0 is empty, and page 1 of rank 1 cannot go
+        assertEquals(pid(4), policy.evict(p -> !p.equals(pid(1))));
+        policy.remove(pid(1));
+        assertEquals(pid(2), policy.evict(p -> true));
+        assertEquals(1, policy.size());
+        assertNull(policy.evict(p -> false));
+    }
+
+    /**
+     * Unit test for LRUKReplacementPolicy: pages referenced K times survive a scan.
+     */
+    @Test public void lruKIsScanResistant() {
+        ReplacementPolicy lru2 = new LRUKReplacementPolicy(2);
+        lru2.recordInsert(pid(0));
+        lru2.recordAccess(pid(0));
+        lru2.recordInsert(pid(1));
+        lru2.recordAccess(pid(1));
+        for (int i = 2; i < 10; i++) {
+            lru2.recordInsert(pid(i));
+            if (lru2.size() > 3) {
+                PageId victim = lru2.evict(p -> true);
+                assertNotEquals(pid(0), victim);
+                assertNotEquals(pid(1), victim);
+            }
+        }
+        // The hot pages are only given up once no cold page is left.
+        lru2.remove(pid(9));
+        assertEquals(pid(0), lru2.evict(p -> true));
+    }
+
+    /**
+     * Replays a Zipfian page-access trace against a bounded pool and compares
+     * the hit ratio of each policy.
+     */
+    @Test public void zipfianHitRatio() {
+        int[] trace = zipfianTrace(TABLE_PAGES, 0.99, TRACE_LENGTH, new Random(42));
+        double clock = hitRatio(new ClockReplacementPolicy(POOL_PAGES), trace);
+        double lru2 = hitRatio(new LRUKReplacementPolicy(2), trace);
+        // A pool holding 10% of the pages should serve well over half of a
+        // skewed workload from memory.
+        assertTrue(clock > 0.5);
+        // LRU-2 tells the hot pages from those referenced only once, which
+        // CLOCK's single reference bit cannot.
+        assertTrue("CLOCK " + clock + " vs LRU-2 " + lru2, lru2 > clock + 0.05);
+    }
+
+    private static double hitRatio(ReplacementPolicy policy, int[] trace) {
+        Set<Integer> resident = new HashSet<>();
+        int hits = 0;
+        for (int pgNo : trace) {
+            if (resident.contains(pgNo)) {
+                hits++;
+                policy.recordAccess(pid(pgNo));
+                continue;
+            }
+            if (resident.size() >= POOL_PAGES) {
+                PageId victim = policy.evict(p -> true);
+                resident.remove(victim.getPageNumber());
+            }
+            resident.add(pgNo);
+            policy.recordInsert(pid(pgNo));
+        }
+        return (double) hits / trace.length;
+    }
+
+    private static int[] zipfianTrace(int numPages, double skew, int length, Random random) {
+        double[] cdf = new double[numPages];
+        double sum = 0;
+        for (int i = 0; i < numPages; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        // Scatter the hot pages over the file instead of clustering them at the start.
+        int[] permutation = new int[numPages];
+        for (int i = 0; i < numPages; i++)
+            permutation[i] = i;
+        for (int i = numPages - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = permutation[i];
+            permutation[i] = permutation[j];
+            permutation[j] = tmp;
+        }
+        int[] trace = new int[length];
+        for (int i = 0; i < length; i++) {
+            int rank = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+            if (rank < 0)
+                rank = -rank - 1;
+            trace[i] = permutation[Math.min(rank, numPages - 1)];
+        }
+        return trace;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}